@@ -0,0 +1,251 @@
+package com.penna.neural.backends;
+
+import java.util.logging.Logger;
+import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
+import org.jblas.NativeBlas;
+import org.jblas.SimpleBlas;
+
+/**
+ * Linear algebra backends that can be used by the neural network for matrix
+ * products and element-wise operations. Matrixes hold one instance per column.
+ *
+ * The default backend is chosen with the system property
+ * <code>neural.backend</code> (<code>jblas</code> or <code>java</code>). If the
+ * property is not set, jblas is used when its native libraries can be loaded,
+ * and the pure Java backend otherwise. The threads of the native BLAS are
+ * configured with {@link ExecutionConfig}.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public enum ComputeBackends {
+    /**
+     * jblas backend, calling the native BLAS bundled with jblas
+     */
+    JBLAS {
+        @Override
+        public DoubleMatrix mmul(DoubleMatrix a, DoubleMatrix b) {
+            return a.mmul(b);
+        }
+
+        @Override
+        public DoubleMatrix mmulTransposeA(DoubleMatrix a, DoubleMatrix b) {
+            checkTransposeA(a, b);
+            DoubleMatrix c = new DoubleMatrix(a.columns, b.columns);
+            NativeBlas.dgemm('T', 'N', c.rows, c.columns, a.rows, 1.0, a.data, 0, a.rows, b.data,
+                    0, b.rows, 0.0, c.data, 0, c.rows);
+            return c;
+        }
+
+        @Override
+        public DoubleMatrix mmulTransposeB(DoubleMatrix a, DoubleMatrix b) {
+            checkTransposeB(a, b);
+            DoubleMatrix c = new DoubleMatrix(a.rows, b.rows);
+            NativeBlas.dgemm('N', 'T', c.rows, c.columns, a.columns, 1.0, a.data, 0, a.rows,
+                    b.data, 0, b.rows, 0.0, c.data, 0, c.rows);
+            return c;
+        }
+
+        @Override
+        public void axpy(double alpha, DoubleMatrix x, DoubleMatrix y) {
+            SimpleBlas.axpy(alpha, x, y);
+        }
+
+        @Override
+        public DoubleMatrix addiColumnVector(DoubleMatrix matrix, DoubleMatrix vector) {
+            return matrix.addiColumnVector(vector);
+        }
+
+        @Override
+        public DoubleMatrix sigmoid(DoubleMatrix zetas) {
+            return MatrixFunctions.expi(zetas.neg()).addi(1).rdivi(1);
+        }
+
+        @Override
+        public DoubleMatrix tanh(DoubleMatrix zetas) {
+            return MatrixFunctions.tanh(zetas);
+        }
+    },
+    /**
+     * Pure Java backend, avoiding the JNI calls of jblas. Faster than jblas for
+     * small layers, and independent of native libraries.
+     */
+    JAVA {
+        @Override
+        public DoubleMatrix mmul(DoubleMatrix a, DoubleMatrix b) {
+            a.assertMultipliesWith(b);
+            DoubleMatrix c = new DoubleMatrix(a.rows, b.columns);
+            JavaBlas.gemm(c.rows, c.columns, a.columns, a.data, b.data, c.data);
+            return c;
+        }
+
+        @Override
+        public DoubleMatrix mmulTransposeA(DoubleMatrix a, DoubleMatrix b) {
+            checkTransposeA(a, b);
+            DoubleMatrix c = new DoubleMatrix(a.columns, b.columns);
+            JavaBlas.gemmTransposeA(c.rows, c.columns, a.rows, a.data, b.data, c.data);
+            return c;
+        }
+
+        @Override
+        public DoubleMatrix mmulTransposeB(DoubleMatrix a, DoubleMatrix b) {
+            checkTransposeB(a, b);
+            DoubleMatrix c = new DoubleMatrix(a.rows, b.rows);
+            JavaBlas.gemmTransposeB(c.rows, c.columns, a.columns, a.data, b.data, c.data);
+            return c;
+        }
+
+        @Override
+        public void axpy(double alpha, DoubleMatrix x, DoubleMatrix y) {
+            x.assertSameLength(y);
+            JavaBlas.axpy(x.length, alpha, x.data, 0, y.data, 0);
+        }
+
+        @Override
+        public DoubleMatrix addiColumnVector(DoubleMatrix matrix, DoubleMatrix vector) {
+            int rows = matrix.rows;
+            for (int j = 0; j < matrix.columns; j++) {
+                JavaBlas.axpy(rows, 1.0, vector.data, 0, matrix.data, j * rows);
+            }
+            return matrix;
+        }
+
+        @Override
+        public DoubleMatrix sigmoid(DoubleMatrix zetas) {
+            DoubleMatrix activations = new DoubleMatrix(zetas.rows, zetas.columns);
+            for (int i = 0; i < zetas.length; i++) {
+                activations.data[i] = 1 / (1 + Math.exp(-zetas.data[i]));
+            }
+            return activations;
+        }
+
+        @Override
+        public DoubleMatrix tanh(DoubleMatrix zetas) {
+            DoubleMatrix activations = new DoubleMatrix(zetas.rows, zetas.columns);
+            for (int i = 0; i < zetas.length; i++) {
+                activations.data[i] = Math.tanh(zetas.data[i]);
+            }
+            return activations;
+        }
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(ComputeBackends.class.getName());
+    private static final String BACKEND_PROPERTY = "neural.backend";
+
+    /**
+     * Computes the matrix product a * b.
+     *
+     * @param a the first operand
+     * @param b the second operand
+     * @return the product
+     */
+    public abstract DoubleMatrix mmul(DoubleMatrix a, DoubleMatrix b);
+
+    /**
+     * Computes the matrix product a' * b, without transposing a.
+     *
+     * @param a the first operand
+     * @param b the second operand
+     * @return the product
+     */
+    public abstract DoubleMatrix mmulTransposeA(DoubleMatrix a, DoubleMatrix b);
+
+    /**
+     * Computes the matrix product a * b', without transposing b.
+     *
+     * @param a the first operand
+     * @param b the second operand
+     * @return the product
+     */
+    public abstract DoubleMatrix mmulTransposeB(DoubleMatrix a, DoubleMatrix b);
+
+    /**
+     * Computes y = alpha * x + y, in place.
+     *
+     * @param alpha the scaling factor of x
+     * @param x the first operand
+     * @param y the second operand and result
+     */
+    public abstract void axpy(double alpha, DoubleMatrix x, DoubleMatrix y);
+
+    /**
+     * Adds a column vector to every column of a matrix, in place.
+     *
+     * @param matrix the matrix, overwritten
+     * @param vector the column vector
+     * @return the matrix
+     */
+    public abstract DoubleMatrix addiColumnVector(DoubleMatrix matrix, DoubleMatrix vector);
+
+    /**
+     * Computes the element-wise sigmoid 1 / (1 + exp(-z)).
+     *
+     * @param zetas the input matrix
+     * @return the sigmoid of each element
+     */
+    public abstract DoubleMatrix sigmoid(DoubleMatrix zetas);
+
+    /**
+     * Computes the element-wise hyperbolic tangent.
+     *
+     * @param zetas the input matrix
+     * @return the hyperbolic tangent of each element
+     */
+    public abstract DoubleMatrix tanh(DoubleMatrix zetas);
+
+    private static void checkTransposeA(DoubleMatrix a, DoubleMatrix b) {
+        if (a.rows != b.rows) {
+            throw new IllegalArgumentException("Matrixes must have the same number of rows");
+        }
+    }
+
+    private static void checkTransposeB(DoubleMatrix a, DoubleMatrix b) {
+        if (a.columns != b.columns) {
+            throw new IllegalArgumentException("Matrixes must have the same number of columns");
+        }
+    }
+
+    private static ComputeBackends defaultBackend;
+
+    /**
+     * Returns the default backend, chosen the first time the method is called.
+     *
+     * @return the default backend
+     */
+    public static synchronized ComputeBackends getDefault() {
+        if (defaultBackend == null) {
+            String name = System.getProperty(BACKEND_PROPERTY);
+            if (name != null) {
+                defaultBackend = valueOf(name.toUpperCase());
+            } else if (isJblasAvailable()) {
+                defaultBackend = JBLAS;
+            } else {
+                LOGGER.warning("jblas native libraries cannot be loaded, using " + JAVA
+                        + " backend");
+                defaultBackend = JAVA;
+            }
+            LOGGER.info("Default compute backend: " + defaultBackend);
+            // reports the threading configuration along with the backend
+            ExecutionConfig.getDefault();
+        }
+        return defaultBackend;
+    }
+
+    /**
+     * Tests if the jblas native libraries can be used, by running a minimal
+     * matrix product.
+     *
+     * @return true if jblas can be used
+     */
+    private static boolean isJblasAvailable() {
+        try {
+            DoubleMatrix one = DoubleMatrix.ones(1, 1);
+            NativeBlas.dgemm('N', 'N', 1, 1, 1, 1.0, one.data, 0, 1, one.data, 0, 1, 0.0,
+                    new double[1], 0, 1);
+            return true;
+        } catch (UnsatisfiedLinkError ule) {
+            return false;
+        }
+    }
+}
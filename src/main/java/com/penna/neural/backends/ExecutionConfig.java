@@ -0,0 +1,412 @@
+package com.penna.neural.backends;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Threading configuration shared by all the parallel code of the library: the
+ * number of Java worker threads, the number of threads of the native BLAS
+ * called by jblas, and the CPUs the process is meant to run on. Parallel work
+ * runs on a single {@link ForkJoinPool} with one thread per worker, so that the
+ * library never starts more compute threads than configured.
+ *
+ * The default configuration is read from system properties:
+ * <ul>
+ * <li><code>neural.workers</code>: number of Java worker threads; by default,
+ * the number of CPUs divided by the number of BLAS threads.</li>
+ * <li><code>neural.blas.threads</code>: number of threads of each native BLAS
+ * call; by default, the value of <code>OPENBLAS_NUM_THREADS</code> or
+ * <code>OMP_NUM_THREADS</code>, or 1.</li>
+ * <li><code>neural.cpus</code>: list of the CPUs to use, e.g.
+ * <code>0-3,8</code>; by default, the CPUs the process is allowed to run on.
+ * </li>
+ * </ul>
+ *
+ * Neither the threads of the native BLAS nor the CPU affinity can be changed
+ * from Java: the native BLAS reads its number of threads from the environment
+ * when it is loaded, and the affinity is set when the process is started,
+ * e.g. with <code>taskset</code>. The configuration is therefore a hint for
+ * these two settings: the default configuration is logged when it is first
+ * used, with a warning when the environment of the process does not match it
+ * or when workers times BLAS threads exceed the CPUs, and child processes can
+ * be started with a matching environment, see {@link #configure(ProcessBuilder)}.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public final class ExecutionConfig {
+
+    private static final Logger LOGGER = Logger.getLogger(ExecutionConfig.class.getName());
+    private static final String WORKERS_PROPERTY = "neural.workers";
+    private static final String BLAS_THREADS_PROPERTY = "neural.blas.threads";
+    private static final String CPUS_PROPERTY = "neural.cpus";
+    // environment variables read by the common native BLAS implementations
+    private static final String[] BLAS_THREADS_VARIABLES = { "OPENBLAS_NUM_THREADS",
+            "OMP_NUM_THREADS", "MKL_NUM_THREADS" };
+    private static final String PROC_STATUS = "/proc/self/status";
+    private static final String CPUS_ALLOWED = "Cpus_allowed_list:";
+
+    private static ExecutionConfig defaultConfig;
+
+    private final int numWorkers;
+    private final int blasThreads;
+    // CPUs to run on, null if not constrained
+    private final int[] cpus;
+    private ForkJoinPool executor;
+
+    /**
+     * Constructs a configuration not constrained to given CPUs.
+     *
+     * @param numWorkers the number of Java worker threads
+     * @param blasThreads the number of threads of each native BLAS call
+     */
+    public ExecutionConfig(int numWorkers, int blasThreads) {
+        this(numWorkers, blasThreads, null);
+    }
+
+    /**
+     * Constructs a configuration.
+     *
+     * @param numWorkers the number of Java worker threads
+     * @param blasThreads the number of threads of each native BLAS call
+     * @param cpus the CPUs to run on, or null if not constrained
+     */
+    public ExecutionConfig(int numWorkers, int blasThreads, int[] cpus) {
+        if (numWorkers < 1 || blasThreads < 1 || (cpus != null && cpus.length == 0)) {
+            throw new IllegalArgumentException("Invalid execution configuration");
+        }
+        this.numWorkers = numWorkers;
+        this.blasThreads = blasThreads;
+        this.cpus = cpus == null ? null : cpus.clone();
+    }
+
+    /**
+     * Returns the default configuration, read from the system properties and
+     * logged the first time the method is called.
+     *
+     * @return the default configuration
+     */
+    public static synchronized ExecutionConfig getDefault() {
+        if (defaultConfig == null) {
+            setDefault(fromSystemProperties());
+        }
+        return defaultConfig;
+    }
+
+    /**
+     * Replaces the default configuration, e.g. before starting several
+     * independent trainings in the same process. Work already submitted to
+     * the executor of the previous configuration is completed.
+     *
+     * @param config the new default configuration
+     */
+    public static synchronized void setDefault(ExecutionConfig config) {
+        if (defaultConfig != null && defaultConfig.executor != null) {
+            defaultConfig.executor.shutdown();
+        }
+        defaultConfig = config;
+        LOGGER.info("Execution configuration: " + config);
+        for (String warning : config.check()) {
+            LOGGER.warning(warning);
+        }
+    }
+
+    private static ExecutionConfig fromSystemProperties() {
+        String cpuList = System.getProperty(CPUS_PROPERTY);
+        int[] cpus = cpuList == null ? null : parseCpuList(cpuList);
+        int numCpus = cpus == null ? Runtime.getRuntime().availableProcessors() : cpus.length;
+        int blasThreads = intProperty(BLAS_THREADS_PROPERTY, 0);
+        if (blasThreads < 1) {
+            Integer environment = getBlasThreadsEnvironment();
+            blasThreads = environment != null ? environment : 1;
+        }
+        int numWorkers = intProperty(WORKERS_PROPERTY, Math.max(1, numCpus / blasThreads));
+        return new ExecutionConfig(numWorkers, blasThreads, cpus);
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid value of " + name + ": " + value, nfe);
+        }
+    }
+
+    /**
+     * Parses a list of CPUs in the format of <code>taskset</code>, e.g.
+     * <code>0-3,8</code>.
+     *
+     * @param cpuList the list of CPUs
+     * @return the sorted CPUs of the list
+     */
+    public static int[] parseCpuList(String cpuList) {
+        TreeSet<Integer> cpus = new TreeSet<Integer>();
+        try {
+            for (String range : cpuList.trim().split(",")) {
+                String[] bounds = range.trim().split("-");
+                int first = Integer.parseInt(bounds[0].trim());
+                int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+                if (bounds.length > 2 || first < 0 || last < first) {
+                    throw new IllegalArgumentException("Invalid CPU list: " + cpuList);
+                }
+                for (int cpu = first; cpu <= last; cpu++) {
+                    cpus.add(cpu);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid CPU list: " + cpuList, nfe);
+        }
+        int[] sorted = new int[cpus.size()];
+        int i = 0;
+        for (int cpu : cpus) {
+            sorted[i++] = cpu;
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns the number of BLAS threads set in the environment of the
+     * process, by the first variable set among those read by the native BLAS
+     * implementations.
+     *
+     * @return the number of threads, or null if not set
+     */
+    private static Integer getBlasThreadsEnvironment() {
+        for (String variable : BLAS_THREADS_VARIABLES) {
+            String value = System.getenv(variable);
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value.trim());
+                } catch (NumberFormatException nfe) {
+                    LOGGER.warning("Ignoring invalid " + variable + "=" + value);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the CPUs the process is allowed to run on, as set by
+     * <code>taskset</code> or by the container, when the operating system
+     * tells them (Linux only).
+     *
+     * @return the list of CPUs, or null if unknown
+     */
+    private static String getAllowedCpus() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(PROC_STATUS));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(CPUS_ALLOWED)) {
+                        return line.substring(CPUS_ALLOWED.length()).trim();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            // not Linux
+        }
+        return null;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    public int getBlasThreads() {
+        return blasThreads;
+    }
+
+    /**
+     * Returns the CPUs the configuration is meant to run on.
+     *
+     * @return the sorted CPUs, or null if not constrained
+     */
+    public int[] getCpus() {
+        return cpus == null ? null : cpus.clone();
+    }
+
+    /**
+     * Returns the number of CPUs the configuration is meant to run on.
+     *
+     * @return the number of CPUs
+     */
+    public int getNumCpus() {
+        return cpus == null ? Runtime.getRuntime().availableProcessors() : cpus.length;
+    }
+
+    /**
+     * Returns the executor of the parallel work, created the first time the
+     * method is called: a fork/join pool of daemon threads, one per worker.
+     * The executor is shared and must not be shut down by its users.
+     *
+     * @return the executor
+     */
+    public synchronized ForkJoinPool getExecutor() {
+        if (executor == null) {
+            ForkJoinPool.ForkJoinWorkerThreadFactory factory =
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("neural-worker-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            executor = new ForkJoinPool(numWorkers, factory, null, false);
+        }
+        return executor;
+    }
+
+    /**
+     * Runs tasks on the executor and waits for all of them.
+     *
+     * @param tasks the tasks
+     * @return the results of the tasks, in the order of the tasks
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a task failed, with the first failure in
+     *             task order as cause
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException,
+            ExecutionException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        for (Future<T> future : getExecutor().invokeAll(tasks)) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the configuration of each of several processes sharing the CPUs
+     * of this configuration, such as training workers started on the same
+     * host. Workers and BLAS threads are divided among the processes, with at
+     * least one each; the CPUs are not, since the affinity of a process can
+     * only be set when it is started.
+     *
+     * @param numProcesses the number of processes
+     * @return the configuration of a process
+     */
+    public ExecutionConfig forProcesses(int numProcesses) {
+        if (numProcesses < 1) {
+            throw new IllegalArgumentException("Number of processes must be positive");
+        }
+        return new ExecutionConfig(Math.max(1, numWorkers / numProcesses), Math.max(1,
+                blasThreads / numProcesses), cpus);
+    }
+
+    /**
+     * Returns the JVM options that make this configuration the default of a
+     * child process.
+     *
+     * @return the system property options
+     */
+    public List<String> getJvmOptions() {
+        List<String> options = new ArrayList<String>();
+        options.add("-D" + WORKERS_PROPERTY + "=" + numWorkers);
+        options.add("-D" + BLAS_THREADS_PROPERTY + "=" + blasThreads);
+        if (cpus != null) {
+            options.add("-D" + CPUS_PROPERTY + "=" + toCpuList(cpus));
+        }
+        return options;
+    }
+
+    /**
+     * Sets the environment of a child process so that its native BLAS uses the
+     * number of threads of this configuration. The JVM options of the process
+     * are not changed, see {@link #getJvmOptions()}.
+     *
+     * @param builder the builder of the child process
+     * @return the builder
+     */
+    public ProcessBuilder configure(ProcessBuilder builder) {
+        Map<String, String> environment = builder.environment();
+        for (String variable : BLAS_THREADS_VARIABLES) {
+            environment.put(variable, String.valueOf(blasThreads));
+        }
+        return builder;
+    }
+
+    /**
+     * Checks the configuration against the environment of the process.
+     *
+     * @return the problems found, empty if none
+     */
+    public List<String> check() {
+        List<String> warnings = new ArrayList<String>();
+        int numCpus = getNumCpus();
+        if ((long) numWorkers * blasThreads > numCpus) {
+            warnings.add(numWorkers + " workers with " + blasThreads + " BLAS threads each "
+                    + "oversubscribe " + numCpus + " CPUs");
+        }
+        Integer environment = getBlasThreadsEnvironment();
+        if (environment == null) {
+            warnings.add("Native BLAS threads are not set and may default to one per core; "
+                    + "start the JVM with OPENBLAS_NUM_THREADS=" + blasThreads
+                    + " if jblas is used");
+        } else if (environment != blasThreads) {
+            warnings.add("Native BLAS uses " + environment + " threads, not " + blasThreads
+                    + "; start the JVM with OPENBLAS_NUM_THREADS=" + blasThreads);
+        }
+        String allowed = getAllowedCpus();
+        if (cpus != null && allowed != null && !Arrays.equals(cpus, parseCpuList(allowed))) {
+            warnings.add("Process runs on CPUs " + allowed + ", not " + toCpuList(cpus)
+                    + "; start it with taskset -c " + toCpuList(cpus));
+        }
+        return warnings;
+    }
+
+    private static String toCpuList(int[] cpus) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < cpus.length; i++) {
+            int last = i;
+            while (last + 1 < cpus.length && cpus[last + 1] == cpus[last] + 1) {
+                last++;
+            }
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(cpus[i]);
+            if (last > i) {
+                list.append('-').append(cpus[last]);
+            }
+            i = last;
+        }
+        return list.toString();
+    }
+
+    /**
+     * Describes the effective configuration: the settings, and the BLAS
+     * threads and CPUs actually set for the process.
+     *
+     * @return the description
+     */
+    @Override
+    public String toString() {
+        Integer environment = getBlasThreadsEnvironment();
+        String allowed = getAllowedCpus();
+        return numWorkers + " workers, " + blasThreads + " BLAS threads (environment: "
+                + (environment == null ? "not set" : environment) + "), CPUs "
+                + (cpus == null ? "not constrained" : toCpuList(cpus)) + " (allowed: "
+                + (allowed == null ? "unknown" : allowed) + ", available processors: "
+                + Runtime.getRuntime().availableProcessors() + ")";
+    }
+}
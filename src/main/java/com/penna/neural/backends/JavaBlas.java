@@ -0,0 +1,154 @@
+package com.penna.neural.backends;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the linear algebra kernels used by the neural
+ * network. Matrixes are column-major arrays, as in jblas. Matrix products are
+ * blocked, so that the blocks of the operands stay in cache, and inner loops
+ * run over contiguous memory, so that the JIT compiler can vectorize them.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class JavaBlas {
+
+    // block sizes, chosen so that a block of each operand fits in L1/L2 cache
+    private static final int ROW_BLOCK = 256;
+    private static final int INNER_BLOCK = 128;
+    private static final int COLUMN_BLOCK = 64;
+
+    /**
+     * Computes c = a * b, where a is m x k, b is k x n and c is m x n.
+     *
+     * @param m number of rows of a and c
+     * @param n number of columns of b and c
+     * @param k number of columns of a and rows of b
+     * @param a the first operand
+     * @param b the second operand
+     * @param c the result, overwritten
+     */
+    public static void gemm(int m, int n, int k, double[] a, double[] b, double[] c) {
+        Arrays.fill(c, 0, m * n, 0d);
+        for (int jj = 0; jj < n; jj += COLUMN_BLOCK) {
+            int jEnd = Math.min(jj + COLUMN_BLOCK, n);
+            for (int pp = 0; pp < k; pp += INNER_BLOCK) {
+                int pEnd = Math.min(pp + INNER_BLOCK, k);
+                for (int ii = 0; ii < m; ii += ROW_BLOCK) {
+                    int iEnd = Math.min(ii + ROW_BLOCK, m);
+                    for (int j = jj; j < jEnd; j++) {
+                        int cOffset = j * m;
+                        int bOffset = j * k;
+                        for (int p = pp; p < pEnd; p++) {
+                            double bpj = b[bOffset + p];
+                            // no shortcut for zeros of b: NaN and infinite
+                            // values of a must propagate as in BLAS
+                            axpy(iEnd - ii, bpj, a, p * m + ii, c, cOffset + ii);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes c = a' * b, where a is k x m, b is k x n and c is m x n.
+     *
+     * @param m number of columns of a and rows of c
+     * @param n number of columns of b and c
+     * @param k number of rows of a and b
+     * @param a the first operand, transposed by the product
+     * @param b the second operand
+     * @param c the result, overwritten
+     */
+    public static void gemmTransposeA(int m, int n, int k, double[] a, double[] b, double[] c) {
+        for (int jj = 0; jj < n; jj += COLUMN_BLOCK) {
+            int jEnd = Math.min(jj + COLUMN_BLOCK, n);
+            for (int ii = 0; ii < m; ii += COLUMN_BLOCK) {
+                int iEnd = Math.min(ii + COLUMN_BLOCK, m);
+                for (int j = jj; j < jEnd; j++) {
+                    for (int i = ii; i < iEnd; i++) {
+                        c[j * m + i] = dot(k, a, i * k, b, j * k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes c = a * b', where a is m x k, b is n x k and c is m x n.
+     *
+     * @param m number of rows of a and c
+     * @param n number of rows of b and columns of c
+     * @param k number of columns of a and b
+     * @param a the first operand
+     * @param b the second operand, transposed by the product
+     * @param c the result, overwritten
+     */
+    public static void gemmTransposeB(int m, int n, int k, double[] a, double[] b, double[] c) {
+        Arrays.fill(c, 0, m * n, 0d);
+        for (int jj = 0; jj < n; jj += COLUMN_BLOCK) {
+            int jEnd = Math.min(jj + COLUMN_BLOCK, n);
+            for (int pp = 0; pp < k; pp += INNER_BLOCK) {
+                int pEnd = Math.min(pp + INNER_BLOCK, k);
+                for (int ii = 0; ii < m; ii += ROW_BLOCK) {
+                    int iEnd = Math.min(ii + ROW_BLOCK, m);
+                    for (int j = jj; j < jEnd; j++) {
+                        int cOffset = j * m;
+                        for (int p = pp; p < pEnd; p++) {
+                            double bjp = b[p * n + j];
+                            // no shortcut for zeros of b: NaN and infinite
+                            // values of a must propagate as in BLAS
+                            axpy(iEnd - ii, bjp, a, p * m + ii, c, cOffset + ii);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes y = alpha * x + y, over n contiguous elements.
+     *
+     * @param n number of elements
+     * @param alpha the scaling factor of x
+     * @param x the first operand
+     * @param xOffset index of the first element of x
+     * @param y the second operand and result
+     * @param yOffset index of the first element of y
+     */
+    public static void axpy(int n, double alpha, double[] x, int xOffset, double[] y, int yOffset) {
+        for (int i = 0; i < n; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    /**
+     * Computes the dot product of n contiguous elements of x and y. Four
+     * independent partial sums hide the latency of the additions.
+     *
+     * @param n number of elements
+     * @param x the first operand
+     * @param xOffset index of the first element of x
+     * @param y the second operand
+     * @param yOffset index of the first element of y
+     * @return the dot product
+     */
+    public static double dot(int n, double[] x, int xOffset, double[] y, int yOffset) {
+        double sum0 = 0;
+        double sum1 = 0;
+        double sum2 = 0;
+        double sum3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            sum0 += x[xOffset + i] * y[yOffset + i];
+            sum1 += x[xOffset + i + 1] * y[yOffset + i + 1];
+            sum2 += x[xOffset + i + 2] * y[yOffset + i + 2];
+            sum3 += x[xOffset + i + 3] * y[yOffset + i + 3];
+        }
+        for (; i < n; i++) {
+            sum0 += x[xOffset + i] * y[yOffset + i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+}
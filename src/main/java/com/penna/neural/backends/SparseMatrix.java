@@ -0,0 +1,117 @@
+package com.penna.neural.backends;
+
+import org.jblas.DoubleMatrix;
+
+/**
+ * An immutable sparse matrix in compressed sparse row (CSR) format: the
+ * non-zero elements of each row are stored contiguously, with their column
+ * indexes. Used to multiply pruned weight matrixes, whose cost is
+ * proportional to the number of non-zero weights instead of their total
+ * number.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class SparseMatrix {
+
+    public final int rows;
+    public final int columns;
+    // non-zero elements of row i are at [rowStarts[i], rowStarts[i + 1])
+    private final int[] rowStarts;
+    private final int[] columnIndexes;
+    private final double[] values;
+
+    private SparseMatrix(int rows, int columns, int[] rowStarts, int[] columnIndexes,
+            double[] values) {
+        this.rows = rows;
+        this.columns = columns;
+        this.rowStarts = rowStarts;
+        this.columnIndexes = columnIndexes;
+        this.values = values;
+    }
+
+    /**
+     * Builds the sparse representation of a dense matrix, dropping its zeros.
+     *
+     * @param dense the dense matrix
+     * @return the sparse matrix
+     */
+    public static SparseMatrix fromDense(DoubleMatrix dense) {
+        int rows = dense.rows;
+        int nonZeros = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (dense.data[i] != 0) {
+                nonZeros++;
+            }
+        }
+        int[] rowStarts = new int[rows + 1];
+        int[] columnIndexes = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        // count the non-zeros of each row, then fill the rows in column order
+        for (int i = 0; i < dense.length; i++) {
+            if (dense.data[i] != 0) {
+                rowStarts[i % rows + 1]++;
+            }
+        }
+        for (int i = 0; i < rows; i++) {
+            rowStarts[i + 1] += rowStarts[i];
+        }
+        int[] next = rowStarts.clone();
+        for (int j = 0; j < dense.columns; j++) {
+            for (int i = 0; i < rows; i++) {
+                double value = dense.data[j * rows + i];
+                if (value != 0) {
+                    columnIndexes[next[i]] = j;
+                    values[next[i]] = value;
+                    next[i]++;
+                }
+            }
+        }
+        return new SparseMatrix(rows, dense.columns, rowStarts, columnIndexes, values);
+    }
+
+    /**
+     * Returns the number of non-zero elements.
+     *
+     * @return the number of non-zero elements
+     */
+    public int getNonZeros() {
+        return values.length;
+    }
+
+    /**
+     * Returns the fraction of non-zero elements.
+     *
+     * @return the density of the matrix, in [0, 1]
+     */
+    public double getDensity() {
+        return (double) values.length / ((long) rows * columns);
+    }
+
+    /**
+     * Computes the product of this matrix by a dense matrix.
+     *
+     * @param b the dense matrix, with as many rows as this matrix has columns
+     * @return the dense product
+     */
+    public DoubleMatrix mmul(DoubleMatrix b) {
+        if (b.rows != columns) {
+            throw new IllegalArgumentException("Matrix dimensions do not match");
+        }
+        DoubleMatrix c = new DoubleMatrix(rows, b.columns);
+        double[] bData = b.data;
+        double[] cData = c.data;
+        for (int n = 0; n < b.columns; n++) {
+            int bOffset = n * columns;
+            int cOffset = n * rows;
+            for (int i = 0; i < rows; i++) {
+                double sum = 0;
+                for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                    sum += values[k] * bData[bOffset + columnIndexes[k]];
+                }
+                cData[cOffset + i] = sum;
+            }
+        }
+        return c;
+    }
+}
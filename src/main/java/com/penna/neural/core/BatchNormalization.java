@@ -0,0 +1,156 @@
+package com.penna.neural.core;
+
+import java.io.Serializable;
+import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
+import com.penna.neural.backends.ComputeBackends;
+
+/**
+ * Batch normalization stage of a layer. During training the zetas of each
+ * neuron are normalized with the mean and variance of the minibatch, then
+ * scaled and shifted by two learned parameters, gamma and beta. Running
+ * averages of the minibatch statistics are used at inference time. Since the
+ * normalization removes the mean of the zetas, the layer's biases are not used
+ * while the stage is active.
+ *
+ * Matrixes hold one instance per column.
+ *
+ * @author mpennacchiotti
+ *
+ */
+class BatchNormalization implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final double EPSILON = 1e-5;
+    // weight of the old value in the running averages
+    private static final double MOMENTUM = 0.9;
+
+    private final DoubleMatrix gamma;
+    private final DoubleMatrix beta;
+    private final DoubleMatrix runningMean;
+    private final DoubleMatrix runningVariance;
+    // normalized zetas and inverse standard deviation of the last training
+    // minibatch, needed by the backward pass
+    private transient DoubleMatrix normalized;
+    private transient DoubleMatrix inverseStd;
+    // gradients of the last training minibatch
+    private transient DoubleMatrix gammaGradient;
+    private transient DoubleMatrix betaGradient;
+
+    /**
+     * Constructs the stage for a layer, as an identity transformation.
+     *
+     * @param layerSize number of neurons of the layer
+     */
+    BatchNormalization(int layerSize) {
+        this(DoubleMatrix.ones(layerSize, 1), DoubleMatrix.zeros(layerSize, 1), DoubleMatrix
+                .zeros(layerSize, 1), DoubleMatrix.ones(layerSize, 1));
+    }
+
+    private BatchNormalization(DoubleMatrix gamma, DoubleMatrix beta, DoubleMatrix runningMean,
+            DoubleMatrix runningVariance) {
+        this.gamma = gamma;
+        this.beta = beta;
+        this.runningMean = runningMean;
+        this.runningVariance = runningVariance;
+    }
+
+    /**
+     * Normalizes the zetas of a training minibatch with the minibatch
+     * statistics, and updates the running averages.
+     *
+     * @param zetas the zetas of the minibatch, overwritten
+     * @return the scaled and shifted normalized zetas
+     */
+    DoubleMatrix forwardTraining(DoubleMatrix zetas) {
+        int batchSize = zetas.columns;
+        DoubleMatrix mean = zetas.rowMeans();
+        DoubleMatrix centered = zetas.subiColumnVector(mean);
+        DoubleMatrix variance = centered.mul(centered).rowMeans();
+        inverseStd = MatrixFunctions.sqrti(variance.add(EPSILON)).rdivi(1);
+        normalized = centered.muliColumnVector(inverseStd);
+        runningMean.muli(MOMENTUM).addi(mean.muli(1 - MOMENTUM));
+        if (batchSize > 1) {
+            // unbiased estimate of the population variance
+            variance.muli((double) batchSize / (batchSize - 1));
+        }
+        runningVariance.muli(MOMENTUM).addi(variance.muli(1 - MOMENTUM));
+        return normalized.mulColumnVector(gamma).addiColumnVector(beta);
+    }
+
+    /**
+     * Normalizes zetas with the running averages, at inference time.
+     *
+     * @param zetas the zetas to normalize, overwritten
+     * @return the scaled and shifted normalized zetas
+     */
+    DoubleMatrix forwardInference(DoubleMatrix zetas) {
+        return zetas.subiColumnVector(runningMean).muliColumnVector(scale())
+                .addiColumnVector(beta);
+    }
+
+    /**
+     * Propagates the deltas of the last training minibatch back through the
+     * normalization, and computes the gradients of gamma and beta.
+     *
+     * @param deltas the derivatives of the cost w.r.t. the output of the
+     *            stage, overwritten
+     * @return the derivatives of the cost w.r.t. the zetas of the layer
+     */
+    DoubleMatrix backward(DoubleMatrix deltas) {
+        int batchSize = deltas.columns;
+        gammaGradient = deltas.mul(normalized).rowSums();
+        betaGradient = deltas.rowSums();
+        DoubleMatrix normalizedDeltas = deltas.muliColumnVector(gamma);
+        DoubleMatrix sumDeltas = normalizedDeltas.rowSums();
+        DoubleMatrix sumScaledDeltas = normalizedDeltas.mul(normalized).rowSums();
+        // dz = (m * dx - sum(dx) - x * sum(dx * x)) * invStd / m
+        return normalizedDeltas.muli(batchSize).subiColumnVector(sumDeltas)
+                .subi(normalized.mulColumnVector(sumScaledDeltas)).muliColumnVector(inverseStd)
+                .divi(batchSize);
+    }
+
+    /**
+     * Updates gamma and beta with the gradients of the last training
+     * minibatch.
+     *
+     * @param step the learning rate divided by the minibatch size
+     * @param backend the backend computing the update
+     */
+    void update(double step, ComputeBackends backend) {
+        backend.axpy(-step, gammaGradient, gamma);
+        backend.axpy(-step, betaGradient, beta);
+    }
+
+    /**
+     * Folds the inference-time normalization into the weights and biases of
+     * the layer, so that the layer computes the same output without the
+     * stage.
+     *
+     * @param weights the weights of the layer, overwritten
+     * @param biases the biases of the layer, overwritten
+     */
+    void fold(DoubleMatrix weights, DoubleMatrix biases) {
+        DoubleMatrix scale = scale();
+        weights.muliColumnVector(scale);
+        biases.copy(beta.sub(scale.muli(runningMean)));
+    }
+
+    private DoubleMatrix scale() {
+        return MatrixFunctions.sqrti(runningVariance.add(EPSILON)).rdivi(1).muli(gamma);
+    }
+
+    /**
+     * Returns the learned parameters and the running statistics of the stage.
+     *
+     * @return gamma, beta, running mean and running variance
+     */
+    DoubleMatrix[] parameters() {
+        return new DoubleMatrix[] { gamma, beta, runningMean, runningVariance };
+    }
+
+    BatchNormalization copy() {
+        return new BatchNormalization(gamma.dup(), beta.dup(), runningMean.dup(), runningVariance
+                .dup());
+    }
+}
@@ -0,0 +1,294 @@
+package com.penna.neural.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+
+/**
+ * A Checkpoint is a snapshot of a gradient descent training run: the network
+ * parameters, the training hyper-parameters and the position (epoch and
+ * minibatch) reached by the training loop. It also records the state of the
+ * generator used to shuffle the training set when training started, so that a
+ * resumed run visits the instances in the same order as the original run, and
+ * the state of the generator of the network and the seed and position of the
+ * dropout masks, so that a resumed run with dropout draws the same masks.
+ *
+ * All matrices are private copies, so a checkpoint can be written to disk by a
+ * background thread while training goes on.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class Checkpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] layerSizes;
+    private final DoubleMatrix[] biases;
+    private final DoubleMatrix[] weights;
+    private final CostFunctions costFunction;
+    private final ActivationFunctions activationFunction;
+    // training hyper-parameters; plain SGD keeps no other optimizer state
+    private final int numEpochs;
+    private final double learnRate;
+    private final int miniBatchSize;
+    private final double weightDecay;
+    private final double dropoutRate;
+    // batch normalization stage of each layer, null if the layer has none
+    private final BatchNormalization[] batchNormalizations;
+    // normalization of the inputs, null if the network has none
+    private final FeatureNormalizer inputNormalizer;
+    // image layers before the fully connected layers
+    private final ImageLayer[] imageLayers;
+    // masks of the weights kept by pruning, null if the network is not pruned
+    private final DoubleMatrix[] pruningMasks;
+    // position of the next minibatch to be processed
+    private final int epoch;
+    private final int batch;
+    // shuffling generator, as it was before the first epoch
+    private final Random initialShuffleRandom;
+    // generator of the network, null in checkpoints written before it was
+    // recorded
+    private final Random random;
+    // seed of the dropout masks and number of minibatches trained, which
+    // select the dropout masks of the next minibatch; the seed is null in
+    // checkpoints written before they were recorded
+    private final Long dropoutSeed;
+    private final long numTrainedBatches;
+
+    Checkpoint(int[] layerSizes, DoubleMatrix[] biases, DoubleMatrix[] weights,
+            CostFunctions costFunction, ActivationFunctions activationFunction, int numEpochs,
+            double learnRate, int miniBatchSize, double weightDecay, double dropoutRate,
+            BatchNormalization[] batchNormalizations, FeatureNormalizer inputNormalizer,
+            ImageLayer[] imageLayers, DoubleMatrix[] pruningMasks, int epoch, int batch,
+            Random initialShuffleRandom, Random random, long dropoutSeed,
+            long numTrainedBatches) {
+        this.layerSizes = layerSizes.clone();
+        this.biases = copy(biases);
+        this.weights = copy(weights);
+        this.costFunction = costFunction;
+        this.activationFunction = activationFunction;
+        this.numEpochs = numEpochs;
+        this.learnRate = learnRate;
+        this.miniBatchSize = miniBatchSize;
+        this.weightDecay = weightDecay;
+        this.dropoutRate = dropoutRate;
+        this.batchNormalizations = copy(batchNormalizations);
+        this.inputNormalizer = inputNormalizer == null ? null : inputNormalizer.copy();
+        this.imageLayers = copy(imageLayers);
+        this.pruningMasks = pruningMasks == null ? null : copy(pruningMasks);
+        this.epoch = epoch;
+        this.batch = batch;
+        this.initialShuffleRandom = initialShuffleRandom;
+        this.random = copyRandom(random);
+        this.dropoutSeed = dropoutSeed;
+        this.numTrainedBatches = numTrainedBatches;
+    }
+
+    private static DoubleMatrix[] copy(DoubleMatrix[] matrixes) {
+        DoubleMatrix[] copies = new DoubleMatrix[matrixes.length];
+        for (int i = 0; i < matrixes.length; i++) {
+            copies[i] = matrixes[i].dup();
+        }
+        return copies;
+    }
+
+    private static BatchNormalization[] copy(BatchNormalization[] batchNormalizations) {
+        BatchNormalization[] copies = new BatchNormalization[batchNormalizations.length];
+        for (int i = 0; i < batchNormalizations.length; i++) {
+            if (batchNormalizations[i] != null) {
+                copies[i] = batchNormalizations[i].copy();
+            }
+        }
+        return copies;
+    }
+
+    private static ImageLayer[] copy(ImageLayer[] imageLayers) {
+        // checkpoints written before image layers existed have none
+        if (imageLayers == null) {
+            return new ImageLayer[0];
+        }
+        ImageLayer[] copies = new ImageLayer[imageLayers.length];
+        for (int i = 0; i < imageLayers.length; i++) {
+            copies[i] = imageLayers[i].copy();
+        }
+        return copies;
+    }
+
+    /**
+     * Returns an independent copy of a random generator, in the same state as
+     * the original.
+     *
+     * @param random the generator to copy
+     * @return the copy of the generator
+     */
+    static Random copyRandom(Random random) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(random);
+            out.close();
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray()));
+            return (Random) in.readObject();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot copy random generator", ioe);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalStateException("Cannot copy random generator", cnfe);
+        }
+    }
+
+    public int[] getLayerSizes() {
+        return layerSizes.clone();
+    }
+
+    public DoubleMatrix[] getBiases() {
+        return copy(biases);
+    }
+
+    public DoubleMatrix[] getWeights() {
+        return copy(weights);
+    }
+
+    public CostFunctions getCostFunction() {
+        return costFunction;
+    }
+
+    public ActivationFunctions getActivationFunction() {
+        return activationFunction;
+    }
+
+    public int getNumEpochs() {
+        return numEpochs;
+    }
+
+    public double getLearnRate() {
+        return learnRate;
+    }
+
+    public int getMiniBatchSize() {
+        return miniBatchSize;
+    }
+
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    public double getDropoutRate() {
+        return dropoutRate;
+    }
+
+    BatchNormalization[] getBatchNormalizations() {
+        return copy(batchNormalizations);
+    }
+
+    ImageLayer[] getImageLayers() {
+        return copy(imageLayers);
+    }
+
+    DoubleMatrix[] getPruningMasks() {
+        return pruningMasks == null ? null : copy(pruningMasks);
+    }
+
+    FeatureNormalizer getInputNormalizer() {
+        return inputNormalizer == null ? null : inputNormalizer.copy();
+    }
+
+    /**
+     * Returns the epoch of the next minibatch to be processed.
+     *
+     * @return the epoch to resume from
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the index, within its epoch, of the next minibatch to be
+     * processed.
+     *
+     * @return the minibatch to resume from
+     */
+    public int getBatch() {
+        return batch;
+    }
+
+    /**
+     * Returns a copy of the shuffling generator as it was before the first
+     * epoch of training.
+     *
+     * @return the initial shuffling generator
+     */
+    public Random getInitialShuffleRandom() {
+        return copyRandom(initialShuffleRandom);
+    }
+
+    /**
+     * Returns a copy of the generator of the network, in its state when the
+     * checkpoint was taken, or a new unseeded generator for checkpoints that
+     * did not record it.
+     *
+     * @return the generator of the network
+     */
+    Random getRandom() {
+        return random == null ? new Random() : copyRandom(random);
+    }
+
+    Long getDropoutSeed() {
+        return dropoutSeed;
+    }
+
+    long getNumTrainedBatches() {
+        return numTrainedBatches;
+    }
+
+    /**
+     * Writes the checkpoint to a file.
+     *
+     * @param file the destination file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        try {
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a checkpoint previously written with {@link #write(File)}.
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public static Checkpoint read(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+        try {
+            return (Checkpoint) in.readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new IOException("File " + file + " is not a valid checkpoint", cnfe);
+        } catch (ClassCastException cce) {
+            throw new IOException("File " + file + " is not a valid checkpoint", cce);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "checkpoint at epoch " + epoch + ", minibatch " + batch;
+    }
+}
@@ -0,0 +1,158 @@
+package com.penna.neural.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Writes checkpoints to a directory on a background thread, so that the
+ * training loop never waits for the disk. If checkpoints are produced faster
+ * than they can be written, only the most recent pending one is written.
+ * Checkpoints are first written to a temporary file and then renamed, so the
+ * directory never contains a partially written checkpoint. Only the most
+ * recent checkpoints are kept.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class CheckpointWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointWriter.class.getName());
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".ckpt";
+
+    private final File directory;
+    private final int numKept;
+    private final ExecutorService executor;
+    // most recent checkpoint not yet written
+    private final AtomicReference<Checkpoint> pending = new AtomicReference<Checkpoint>();
+    private long sequence;
+
+    /**
+     * Constructs a writer that stores checkpoints in the given directory.
+     *
+     * @param directory the directory where checkpoints are written
+     * @param numKept number of most recent checkpoints kept on disk
+     * @throws IOException if the directory does not exist and cannot be
+     *             created
+     */
+    public CheckpointWriter(File directory, int numKept) throws IOException {
+        if (numKept < 1) {
+            throw new IllegalArgumentException("At least one checkpoint must be kept");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create checkpoint directory " + directory);
+        }
+        this.directory = directory;
+        this.numKept = numKept;
+        File[] existing = listCheckpoints(directory);
+        this.sequence = existing.length == 0 ? 0 : sequenceOf(existing[existing.length - 1]) + 1;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules a checkpoint to be written. The method returns immediately.
+     *
+     * @param checkpoint the checkpoint to write
+     */
+    public void submit(Checkpoint checkpoint) {
+        if (pending.getAndSet(checkpoint) == null) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    writePending();
+                }
+            });
+        }
+    }
+
+    private void writePending() {
+        Checkpoint checkpoint = pending.getAndSet(null);
+        if (checkpoint == null) {
+            return;
+        }
+        File target = new File(directory, String.format("%s%08d%s", PREFIX, sequence, SUFFIX));
+        File temp = new File(directory, target.getName() + ".tmp");
+        try {
+            checkpoint.write(temp);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            sequence++;
+            LOGGER.info("Written " + checkpoint + " to " + target);
+            deleteOldCheckpoints();
+        } catch (IOException ioe) {
+            LOGGER.severe("Cannot write checkpoint " + target + ": " + ioe.getMessage());
+            temp.delete();
+        }
+    }
+
+    private void deleteOldCheckpoints() {
+        File[] checkpoints = listCheckpoints(directory);
+        for (int i = 0; i < checkpoints.length - numKept; i++) {
+            if (!checkpoints[i].delete()) {
+                LOGGER.warning("Cannot delete old checkpoint " + checkpoints[i]);
+            }
+        }
+    }
+
+    /**
+     * Waits for pending checkpoints to be written and stops the background
+     * thread.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the most recent checkpoint in a directory.
+     *
+     * @param directory the checkpoint directory
+     * @return the most recent checkpoint, or null if the directory contains no
+     *         checkpoint
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public static Checkpoint readLatest(File directory) throws IOException {
+        File[] checkpoints = listCheckpoints(directory);
+        if (checkpoints.length == 0) {
+            return null;
+        }
+        return Checkpoint.read(checkpoints[checkpoints.length - 1]);
+    }
+
+    /**
+     * Lists the checkpoint files in a directory, oldest first.
+     */
+    private static File[] listCheckpoints(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long sequenceOf(File checkpoint) {
+        String name = checkpoint.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
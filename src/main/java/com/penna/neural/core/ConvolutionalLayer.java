@@ -0,0 +1,256 @@
+package com.penna.neural.core;
+
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ComputeBackends;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.WeightInitializers;
+
+/**
+ * Two-dimensional convolution, followed by an activation function. Each
+ * filter spans all the input channels and produces one output channel.
+ *
+ * Convolution is computed with the im2col technique: the receptive fields of
+ * all the output pixels of a minibatch are copied as the columns of a single
+ * matrix, so that the forward pass, the gradient of the filters and the
+ * propagation of the deltas are three matrix products.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class ConvolutionalLayer extends ImageLayer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int numFilters;
+    private final int kernelSize;
+    private final int stride;
+    private final int padding;
+    private final int outputHeight;
+    private final int outputWidth;
+    private final ActivationFunctions activationFunction;
+    private final WeightInitializers initializer;
+    // one filter per row, one weight per element of the receptive field
+    private DoubleMatrix weights;
+    private DoubleMatrix biases;
+    // receptive fields and activations of the last training minibatch, one
+    // output pixel per column
+    private transient DoubleMatrix fields;
+    private transient DoubleMatrix activations;
+    // gradients of the last training minibatch
+    private transient DoubleMatrix weightGradient;
+    private transient DoubleMatrix biasGradient;
+
+    /**
+     * Constructs a convolutional layer, whose filters are initialized with the
+     * default scheme for the activation function.
+     *
+     * @param inputChannels number of channels of the input images
+     * @param inputHeight height of the input images
+     * @param inputWidth width of the input images
+     * @param numFilters number of filters, i.e. of output channels
+     * @param kernelSize height and width of the filters
+     * @param stride distance between the receptive fields of two adjacent
+     *            output pixels
+     * @param padding number of zero pixels added to each border of the input
+     * @param activationFunction the activation function of the layer
+     */
+    public ConvolutionalLayer(int inputChannels, int inputHeight, int inputWidth,
+            int numFilters, int kernelSize, int stride, int padding,
+            ActivationFunctions activationFunction) {
+        this(inputChannels, inputHeight, inputWidth, numFilters, kernelSize, stride, padding,
+                activationFunction, WeightInitializers.forActivation(activationFunction));
+    }
+
+    /**
+     * Constructs a convolutional layer.
+     *
+     * @param inputChannels number of channels of the input images
+     * @param inputHeight height of the input images
+     * @param inputWidth width of the input images
+     * @param numFilters number of filters, i.e. of output channels
+     * @param kernelSize height and width of the filters
+     * @param stride distance between the receptive fields of two adjacent
+     *            output pixels
+     * @param padding number of zero pixels added to each border of the input
+     * @param activationFunction the activation function of the layer
+     * @param initializer the initialization scheme of the filters
+     */
+    public ConvolutionalLayer(int inputChannels, int inputHeight, int inputWidth,
+            int numFilters, int kernelSize, int stride, int padding,
+            ActivationFunctions activationFunction, WeightInitializers initializer) {
+        super(inputChannels, inputHeight, inputWidth);
+        if (numFilters < 1 || kernelSize < 1 || stride < 1 || padding < 0
+                || kernelSize > inputHeight + 2 * padding
+                || kernelSize > inputWidth + 2 * padding) {
+            throw new IllegalArgumentException("Invalid convolution parameters");
+        }
+        this.numFilters = numFilters;
+        this.kernelSize = kernelSize;
+        this.stride = stride;
+        this.padding = padding;
+        this.outputHeight = (inputHeight + 2 * padding - kernelSize) / stride + 1;
+        this.outputWidth = (inputWidth + 2 * padding - kernelSize) / stride + 1;
+        this.activationFunction = activationFunction;
+        this.initializer = initializer;
+    }
+
+    @Override
+    public int getOutputChannels() {
+        return numFilters;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    public DoubleMatrix getWeights() {
+        return weights;
+    }
+
+    public DoubleMatrix getBiases() {
+        return biases;
+    }
+
+    private int fieldSize() {
+        return kernelSize * kernelSize * inputChannels;
+    }
+
+    @Override
+    void initialize(Random random) {
+        weights = initializer.initialize(numFilters, fieldSize(), random);
+        biases = initializer.initializeBiases(numFilters, random);
+    }
+
+    @Override
+    DoubleMatrix forward(DoubleMatrix inputs, ComputeBackends backend, boolean training) {
+        int batchSize = inputs.columns;
+        DoubleMatrix inputFields = toFields(inputs);
+        // one filter per row, one output pixel of one instance per column:
+        // the data is already laid out as the output images
+        DoubleMatrix zetas = backend.mmul(weights, inputFields);
+        backend.addiColumnVector(zetas, biases);
+        DoubleMatrix outputs = activationFunction.activate(zetas, backend);
+        if (training) {
+            fields = inputFields;
+            activations = outputs;
+        }
+        return new DoubleMatrix(getOutputSize(), batchSize, outputs.data);
+    }
+
+    @Override
+    DoubleMatrix backward(DoubleMatrix deltas, ComputeBackends backend, boolean propagate) {
+        DoubleMatrix pixelDeltas = new DoubleMatrix(numFilters, activations.columns, deltas.data);
+        pixelDeltas.muli(activationFunction.derivative(activations));
+        weightGradient = backend.mmulTransposeB(pixelDeltas, fields);
+        biasGradient = pixelDeltas.rowSums();
+        if (!propagate) {
+            return null;
+        }
+        return fromFields(backend.mmulTransposeA(weights, pixelDeltas), deltas.columns);
+    }
+
+    @Override
+    void update(double step, double decay, ComputeBackends backend) {
+        if (decay != 1) {
+            weights.muli(decay);
+        }
+        backend.axpy(-step, weightGradient, weights);
+        backend.axpy(-step, biasGradient, biases);
+    }
+
+    /**
+     * Copies the receptive fields of all the output pixels in the columns of
+     * a matrix (im2col). Padding pixels are zeros.
+     */
+    private DoubleMatrix toFields(DoubleMatrix inputs) {
+        int fieldSize = fieldSize();
+        int outputPixels = outputHeight * outputWidth;
+        int inputSize = getInputSize();
+        DoubleMatrix result = new DoubleMatrix(fieldSize, inputs.columns * outputPixels);
+        double[] in = inputs.data;
+        double[] out = result.data;
+        for (int n = 0; n < inputs.columns; n++) {
+            for (int oy = 0; oy < outputHeight; oy++) {
+                for (int ox = 0; ox < outputWidth; ox++) {
+                    int column = (n * outputPixels + oy * outputWidth + ox) * fieldSize;
+                    int x0 = ox * stride - padding;
+                    // range of the filter columns inside the image
+                    int kx0 = Math.max(0, -x0);
+                    int kx1 = Math.min(kernelSize, inputWidth - x0);
+                    for (int ky = 0; ky < kernelSize; ky++) {
+                        int y = oy * stride - padding + ky;
+                        if (y < 0 || y >= inputHeight || kx0 >= kx1) {
+                            continue;
+                        }
+                        // the pixels of a filter row are contiguous
+                        System.arraycopy(in, n * inputSize + (y * inputWidth + x0 + kx0)
+                                * inputChannels, out, column + (ky * kernelSize + kx0)
+                                * inputChannels, (kx1 - kx0) * inputChannels);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sums the deltas of the receptive fields back into the deltas of the
+     * input images (col2im), the inverse of {@link #toFields(DoubleMatrix)}.
+     */
+    private DoubleMatrix fromFields(DoubleMatrix fieldDeltas, int batchSize) {
+        int fieldSize = fieldSize();
+        int outputPixels = outputHeight * outputWidth;
+        int inputSize = getInputSize();
+        DoubleMatrix result = new DoubleMatrix(inputSize, batchSize);
+        double[] in = fieldDeltas.data;
+        double[] out = result.data;
+        for (int n = 0; n < batchSize; n++) {
+            for (int oy = 0; oy < outputHeight; oy++) {
+                for (int ox = 0; ox < outputWidth; ox++) {
+                    int column = (n * outputPixels + oy * outputWidth + ox) * fieldSize;
+                    int x0 = ox * stride - padding;
+                    int kx0 = Math.max(0, -x0);
+                    int kx1 = Math.min(kernelSize, inputWidth - x0);
+                    for (int ky = 0; ky < kernelSize; ky++) {
+                        int y = oy * stride - padding + ky;
+                        if (y < 0 || y >= inputHeight || kx0 >= kx1) {
+                            continue;
+                        }
+                        int from = column + (ky * kernelSize + kx0) * inputChannels;
+                        int to = n * inputSize + (y * inputWidth + x0 + kx0) * inputChannels;
+                        for (int i = 0; i < (kx1 - kx0) * inputChannels; i++) {
+                            out[to + i] += in[from + i];
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    long multiplyAdds(int batchSize) {
+        return (long) numFilters * fieldSize() * outputHeight * outputWidth * batchSize;
+    }
+
+    @Override
+    DoubleMatrix[] parameters() {
+        return new DoubleMatrix[] { weights, biases };
+    }
+
+    @Override
+    ImageLayer copy() {
+        ConvolutionalLayer copy = new ConvolutionalLayer(inputChannels, inputHeight, inputWidth,
+                numFilters, kernelSize, stride, padding, activationFunction, initializer);
+        copy.weights = weights.dup();
+        copy.biases = biases.dup();
+        return copy;
+    }
+}
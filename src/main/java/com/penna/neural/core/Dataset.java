@@ -4,16 +4,21 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import org.jblas.DoubleMatrix;
 import com.penna.neural.exceptions.DatasetInitializationException;
-import com.penna.neural.utils.MnistUtils;
+import com.penna.neural.utils.RandomUtils;
 
 public class Dataset implements Iterable<Instance> {
 
-    private static final Logger LOGGER = Logger.getLogger(MnistUtils.class.getName());
+    private static final Logger LOGGER = Logger.getLogger(Dataset.class.getName());
 
     private List<Instance> instances;
+    // source of randomness used to shuffle the instances
+    private Random random = new Random();
 
     /**
      * Constructs an empty dataset.
@@ -35,12 +40,28 @@ public class Dataset implements Iterable<Instance> {
      *             invalid
      */
     public Dataset(int numFeatures, int numInstances) throws DatasetInitializationException {
+        this(numFeatures, numInstances, new Random());
+    }
+
+    /**
+     * Constructs a dataset with random unlabelled instances, drawn from the
+     * given generator. The generator is also used to shuffle the dataset.
+     * 
+     * @param numFeatures number of instances' features
+     * @param numInstances number of instances to the dataset
+     * @param random the generator to draw features from
+     * @throws DatasetInitializationException if initialization parameters are
+     *             invalid
+     */
+    public Dataset(int numFeatures, int numInstances, Random random)
+            throws DatasetInitializationException {
         if (numFeatures < 1 || numInstances < 1) {
             throw new DatasetInitializationException();
         }
+        this.random = random;
         instances = new ArrayList<Instance>();
         for (int i = 0; i < numInstances; i++) {
-            DoubleMatrix features = DoubleMatrix.randn(numFeatures, 1);
+            DoubleMatrix features = RandomUtils.randn(numFeatures, 1, random);
             instances.add(new Instance(features));
         }
     }
@@ -56,13 +77,30 @@ public class Dataset implements Iterable<Instance> {
      */
     public Dataset(int numFeatures, int numLabels, int numInstances)
             throws DatasetInitializationException {
+        this(numFeatures, numLabels, numInstances, new Random());
+    }
+
+    /**
+     * Constructs a dataset with random labelled instances, drawn from the given
+     * generator. The generator is also used to shuffle the dataset.
+     * 
+     * @param numFeatures number of instances' features
+     * @param numLabels number of instances' labels
+     * @param numInstances number of instances to the dataset
+     * @param random the generator to draw features and labels from
+     * @throws DatasetInitializationException if initialization parameters are
+     *             invalid
+     */
+    public Dataset(int numFeatures, int numLabels, int numInstances, Random random)
+            throws DatasetInitializationException {
         if (numFeatures < 1 || numInstances < 1 || numLabels < 1) {
             throw new DatasetInitializationException();
         }
+        this.random = random;
         instances = new ArrayList<Instance>();
         for (int i = 0; i < numInstances; i++) {
-            DoubleMatrix features = DoubleMatrix.randn(numFeatures, 1);
-            DoubleMatrix labels = DoubleMatrix.randn(numLabels, 1);
+            DoubleMatrix features = RandomUtils.randn(numFeatures, 1, random);
+            DoubleMatrix labels = RandomUtils.randn(numLabels, 1, random);
             instances.add(new Instance(features, labels));
         }
     }
@@ -87,36 +125,74 @@ public class Dataset implements Iterable<Instance> {
         return getInstances();
     }
 
+    /**
+     * Returns a sequential stream of the instances.
+     * 
+     * @return the stream of the instances
+     */
+    public Stream<Instance> stream() {
+        return instances.stream();
+    }
+
+    /**
+     * Starts a lazy pipeline of transformations of the instances, e.g.
+     * <code>dataset.pipeline().labelled().balance(1000).toDataset()</code>.
+     * The dataset must not be modified until the pipeline is consumed.
+     * 
+     * @return the pipeline of the instances
+     */
+    public DatasetPipeline pipeline() {
+        return new DatasetPipeline(instances.stream(), random);
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Sets the source of randomness used by {@link #shuffle()}. Replacing it
+     * with a generator in a known state makes the sequence of shuffles
+     * repeatable.
+     * 
+     * @param random the generator used to shuffle the instances
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
     /**
      * Shuffle the order of the instances in the dataset.
      */
     public void shuffle() {
-        Collections.shuffle(instances);
+        Collections.shuffle(instances, random);
     }
 
     /**
      * Get a subset of this dataset, by specifying the start and end index from
-     * which to subset from.
+     * which to subset from. The subset shares the shuffling generator of this
+     * dataset.
      * 
      * @param startIdx start index of the subset
      * @param endIdx end index of the subset
      * @return the subset dataset
      */
     public Dataset getSubSet(int startIdx, int endIdx) {
-        return new Dataset(instances.subList(startIdx, endIdx));
+        Dataset subSet = new Dataset(instances.subList(startIdx, endIdx));
+        subSet.random = random;
+        return subSet;
     }
 
     /**
      * Removes unlabelled instances from the dataset.
      */
     public void removeUnlabelledInstance() {
-        int numRemovedInstances = 0;
-        for (int i = 0; i < instances.size(); i++) {
-            if (!instances.get(i).isLabelled()) {
-                instances.remove(i);
-                numRemovedInstances++;
+        int size = instances.size();
+        instances.removeIf(new Predicate<Instance>() {
+            public boolean test(Instance instance) {
+                return !instance.isLabelled();
             }
-        }
+        });
+        int numRemovedInstances = size - instances.size();
         LOGGER.info("Removed " + numRemovedInstances + " instances");
     }
 }
@@ -0,0 +1,401 @@
+package com.penna.neural.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ExecutionConfig;
+import com.penna.neural.exceptions.NoLabelException;
+
+/**
+ * A lazy sequence of transformations of the instances of a {@link Dataset},
+ * created by {@link Dataset#pipeline()}. Transformations are only applied
+ * when a terminal operation, such as {@link #toDataset()}, consumes the
+ * pipeline, in a single pass and without intermediate datasets. Pipelines can
+ * be evaluated in parallel, see {@link #parallel()}.
+ *
+ * Like the underlying stream, a pipeline can only be consumed once. Sampling
+ * operations use the shuffling generator of the source dataset: they are
+ * repeatable when the pipeline is sequential.
+ *
+ * The class of an instance is the index of its largest label, or, for binary
+ * classification with a single label, 1 if the label is at least 0.5 and 0
+ * otherwise. Operations on classes skip unlabelled instances.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class DatasetPipeline {
+
+    // chunks of a parallel evaluation per worker, to balance the load when
+    // filters keep more instances of some chunks
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final Consumer<Instance> SKIP = new Consumer<Instance>() {
+        public void accept(Instance instance) {
+        }
+    };
+
+    // always sequential; parallel evaluation splits it explicitly
+    private final Stream<Instance> stream;
+    private final Random random;
+    private final boolean parallel;
+    private final boolean limited;
+
+    DatasetPipeline(Stream<Instance> stream, Random random) {
+        this(stream, random, false, false);
+    }
+
+    private DatasetPipeline(Stream<Instance> stream, Random random, boolean parallel,
+            boolean limited) {
+        this.stream = stream.sequential();
+        this.random = random;
+        this.parallel = parallel;
+        this.limited = limited;
+    }
+
+    /**
+     * Returns the class of a labelled instance.
+     *
+     * @param instance the labelled instance
+     * @return the class of the instance
+     */
+    static int classOf(Instance instance) {
+        // the caller has checked the instance is labelled
+        DoubleMatrix labels;
+        try {
+            labels = instance.getLabels();
+        } catch (NoLabelException nle) {
+            throw new IllegalStateException(nle);
+        }
+        if (labels.length == 1) {
+            return labels.data[0] >= 0.5 ? 1 : 0;
+        }
+        return labels.argmax();
+    }
+
+    /**
+     * Keeps the instances matching a condition.
+     *
+     * @param predicate the condition of the instances to keep
+     * @return the pipeline
+     */
+    public DatasetPipeline filter(Predicate<? super Instance> predicate) {
+        return new DatasetPipeline(stream.filter(predicate), random, parallel, limited);
+    }
+
+    /**
+     * Replaces each instance with the result of a function, e.g. to transform
+     * the features. The function must not modify its argument, which belongs
+     * to the source dataset.
+     *
+     * @param function the function computing the new instances
+     * @return the pipeline
+     */
+    public DatasetPipeline map(Function<? super Instance, ? extends Instance> function) {
+        return new DatasetPipeline(stream.<Instance> map(function), random, parallel, limited);
+    }
+
+    /**
+     * Keeps at most the given number of instances, and stops consuming the
+     * source once they are found. Since the instances kept are the first ones
+     * in order, a limited pipeline is always evaluated sequentially.
+     *
+     * @param maxSize the maximum number of instances
+     * @return the pipeline
+     */
+    public DatasetPipeline limit(long maxSize) {
+        return new DatasetPipeline(stream.limit(maxSize), random, parallel, true);
+    }
+
+    /**
+     * Keeps the labelled instances.
+     *
+     * @return the pipeline
+     */
+    public DatasetPipeline labelled() {
+        return filter(new Predicate<Instance>() {
+            public boolean test(Instance instance) {
+                return instance.isLabelled();
+            }
+        });
+    }
+
+    /**
+     * Keeps the labelled instances of the given classes.
+     *
+     * @param classes the classes to keep
+     * @return the pipeline
+     */
+    public DatasetPipeline ofClasses(final int... classes) {
+        return filter(new Predicate<Instance>() {
+            public boolean test(Instance instance) {
+                if (!instance.isLabelled()) {
+                    return false;
+                }
+                int instanceClass = classOf(instance);
+                for (int c : classes) {
+                    if (c == instanceClass) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Keeps each instance independently with the given probability.
+     *
+     * @param fraction the probability of keeping an instance, in [0, 1]
+     * @return the pipeline
+     */
+    public DatasetPipeline sample(final double fraction) {
+        checkFraction(fraction);
+        return filter(new Predicate<Instance>() {
+            public boolean test(Instance instance) {
+                return random.nextDouble() < fraction;
+            }
+        });
+    }
+
+    /**
+     * Keeps the given fraction of the labelled instances of each class, so
+     * that the sample has the same class proportions as the source. The
+     * instances of a class are sampled at regular intervals from a random
+     * offset, so that the number of instances kept for each class is exact
+     * (rounded up or down) without knowing the class sizes in advance; the
+     * source should be shuffled first if its order is not random.
+     *
+     * @param fraction the fraction of the instances to keep, in [0, 1]
+     * @return the pipeline
+     */
+    public DatasetPipeline stratifiedSample(final double fraction) {
+        checkFraction(fraction);
+        final ConcurrentMap<Integer, ClassCounter> counters =
+                new ConcurrentHashMap<Integer, ClassCounter>();
+        return filter(new Predicate<Instance>() {
+            public boolean test(Instance instance) {
+                if (!instance.isLabelled()) {
+                    return false;
+                }
+                ClassCounter counter = counter(counters, classOf(instance));
+                long count = counter.count.getAndIncrement();
+                // kept when the expected sample size of the class reaches the
+                // next integer
+                return Math.floor((count + 1) * fraction + counter.offset) > Math.floor(count
+                        * fraction + counter.offset);
+            }
+        });
+    }
+
+    /**
+     * Keeps at most the given number of labelled instances of each class:
+     * the first ones in the order of the source when the pipeline is
+     * sequential, any of them when it is parallel. Classes with enough
+     * instances are equally represented; the source should be shuffled first
+     * for a random sample.
+     *
+     * @param perClass the maximum number of instances of each class
+     * @return the pipeline
+     */
+    public DatasetPipeline balance(final long perClass) {
+        final ConcurrentMap<Integer, ClassCounter> counters =
+                new ConcurrentHashMap<Integer, ClassCounter>();
+        return filter(new Predicate<Instance>() {
+            public boolean test(Instance instance) {
+                if (!instance.isLabelled()) {
+                    return false;
+                }
+                return counter(counters, classOf(instance)).count.incrementAndGet() <= perClass;
+            }
+        });
+    }
+
+    /**
+     * Evaluates the terminal operations of the pipeline in parallel, on the
+     * workers of the default {@link ExecutionConfig}: the instances of the
+     * source are split into ordered chunks, each chunk goes through the
+     * pipeline in a task of its own, and the results are joined in order, so
+     * the order of the instances is preserved. Limited pipelines are still
+     * evaluated sequentially, see {@link #limit(long)}.
+     *
+     * @return the pipeline
+     */
+    public DatasetPipeline parallel() {
+        return new DatasetPipeline(stream, random, true, limited);
+    }
+
+    /**
+     * Evaluates the pipeline sequentially.
+     *
+     * @return the pipeline
+     */
+    public DatasetPipeline sequential() {
+        return new DatasetPipeline(stream, random, false, limited);
+    }
+
+    /**
+     * Returns the instances of the pipeline as a sequential stream, even if
+     * the pipeline is parallel: only the terminal operations of the pipeline
+     * are evaluated on the shared workers.
+     *
+     * @return the sequential stream of the instances
+     */
+    public Stream<Instance> stream() {
+        return stream;
+    }
+
+    /**
+     * Consumes the pipeline and counts its instances.
+     *
+     * @return the number of instances
+     */
+    public long count() {
+        if (!isSplit()) {
+            return stream.count();
+        }
+        long count = 0;
+        for (Long chunkCount : evaluate(new Function<Spliterator<Instance>, Long>() {
+            public Long apply(Spliterator<Instance> chunk) {
+                long chunkCount = 0;
+                while (chunk.tryAdvance(SKIP)) {
+                    chunkCount++;
+                }
+                return chunkCount;
+            }
+        })) {
+            count += chunkCount;
+        }
+        return count;
+    }
+
+    /**
+     * Consumes the pipeline and collects its instances in a new dataset,
+     * which shares the shuffling generator of the source dataset.
+     *
+     * @return the dataset of the instances
+     */
+    public Dataset toDataset() {
+        List<Instance> instances;
+        if (!isSplit()) {
+            instances = stream.collect(Collectors.<Instance> toList());
+        } else {
+            instances = new ArrayList<Instance>();
+            for (List<Instance> chunkInstances : evaluate(
+                    new Function<Spliterator<Instance>, List<Instance>>() {
+                public List<Instance> apply(Spliterator<Instance> chunk) {
+                    final List<Instance> chunkInstances = new ArrayList<Instance>();
+                    chunk.forEachRemaining(new Consumer<Instance>() {
+                        public void accept(Instance instance) {
+                            chunkInstances.add(instance);
+                        }
+                    });
+                    return chunkInstances;
+                }
+            })) {
+                instances.addAll(chunkInstances);
+            }
+        }
+        Dataset dataset = new Dataset(instances);
+        dataset.setRandom(random);
+        return dataset;
+    }
+
+    private boolean isSplit() {
+        return parallel && !limited;
+    }
+
+    /**
+     * Splits the instances of the pipeline into ordered chunks and runs a
+     * terminal operation on each chunk, on the shared workers.
+     *
+     * @param operation the terminal operation of a chunk
+     * @return the results of the chunks, in the order of the instances
+     */
+    private <T> List<T> evaluate(final Function<Spliterator<Instance>, T> operation) {
+        ExecutionConfig config = ExecutionConfig.getDefault();
+        // splitting is lazy since the pipeline has no stateful operation
+        List<Spliterator<Instance>> chunks = new ArrayList<Spliterator<Instance>>();
+        chunks.add(stream.parallel().spliterator());
+        boolean split = true;
+        while (split && chunks.size() < config.getNumWorkers() * CHUNKS_PER_WORKER) {
+            split = false;
+            List<Spliterator<Instance>> halves = new ArrayList<Spliterator<Instance>>();
+            for (Spliterator<Instance> chunk : chunks) {
+                // the chunks are ordered, so the split part precedes the rest
+                Spliterator<Instance> prefix = chunk.trySplit();
+                if (prefix != null) {
+                    halves.add(prefix);
+                    split = true;
+                }
+                halves.add(chunk);
+            }
+            chunks = halves;
+        }
+        List<Callable<T>> tasks = new ArrayList<Callable<T>>(chunks.size());
+        for (final Spliterator<Instance> chunk : chunks) {
+            tasks.add(new Callable<T>() {
+                public T call() {
+                    return operation.apply(chunk);
+                }
+            });
+        }
+        try {
+            return config.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating pipeline", ie);
+        } catch (ExecutionException ee) {
+            // failures of the operations of the pipeline are rethrown as they are
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            } else if (ee.getCause() instanceof Error) {
+                throw (Error) ee.getCause();
+            }
+            throw new IllegalStateException("Failed to evaluate pipeline", ee.getCause());
+        }
+    }
+
+    private static void checkFraction(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction must be in [0, 1]");
+        }
+    }
+
+    private ClassCounter counter(ConcurrentMap<Integer, ClassCounter> counters,
+            Integer instanceClass) {
+        ClassCounter counter = counters.get(instanceClass);
+        if (counter == null) {
+            ClassCounter newCounter = new ClassCounter(random.nextDouble());
+            counter = counters.putIfAbsent(instanceClass, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Number of instances of a class seen by a sampling operation.
+     */
+    private static class ClassCounter {
+        private final AtomicLong count = new AtomicLong();
+        // random offset of the sampling intervals
+        private final double offset;
+
+        ClassCounter(double offset) {
+            this.offset = offset;
+        }
+    }
+}
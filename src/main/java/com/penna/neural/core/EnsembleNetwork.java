@@ -0,0 +1,232 @@
+package com.penna.neural.core;
+
+import java.util.Arrays;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ComputeBackends;
+
+/**
+ * An ensemble of fully connected networks with the same input size, whose
+ * outputs are combined into a single prediction. The first layer weights of
+ * all the members are stacked in a single matrix, so that the input is
+ * multiplied by all of them with a single, dense, matrix product; the
+ * remaining layers are evaluated member by member, with the sparse weights of
+ * pruned members. All the members must use the same backend.
+ *
+ * The ensemble is built from frozen copies of its members (see
+ * {@link NeuralNetwork#freeze()}), so batch normalization and input
+ * normalization are folded into the weights, and later changes to the
+ * members are not reflected. Members with image layers are not supported.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class EnsembleNetwork {
+
+    /**
+     * Ways of combining the outputs of the members.
+     */
+    public enum Combination {
+
+        /**
+         * Average of the outputs of the members.
+         */
+        MEAN {
+            @Override
+            DoubleMatrix combine(DoubleMatrix[] outputs, double[] weights) {
+                double[] equal = new double[outputs.length];
+                Arrays.fill(equal, 1.0 / outputs.length);
+                return WEIGHTED.combine(outputs, equal);
+            }
+        },
+        /**
+         * Average of the outputs of the members, weighted by the weights of
+         * the members.
+         */
+        WEIGHTED {
+            @Override
+            DoubleMatrix combine(DoubleMatrix[] outputs, double[] weights) {
+                DoubleMatrix combined = new DoubleMatrix(outputs[0].rows, outputs[0].columns);
+                for (int m = 0; m < outputs.length; m++) {
+                    double[] output = outputs[m].data;
+                    for (int i = 0; i < output.length; i++) {
+                        combined.data[i] += weights[m] * output[i];
+                    }
+                }
+                return combined;
+            }
+        },
+        /**
+         * Fraction of the votes of the members for each class, each member
+         * voting with its weight for its largest output, or, with a single
+         * output, the fraction of the votes for an output of at least 0.5.
+         */
+        VOTE {
+            @Override
+            DoubleMatrix combine(DoubleMatrix[] outputs, double[] weights) {
+                int rows = outputs[0].rows;
+                DoubleMatrix votes = new DoubleMatrix(rows, outputs[0].columns);
+                for (int m = 0; m < outputs.length; m++) {
+                    double[] output = outputs[m].data;
+                    for (int n = 0; n < votes.columns; n++) {
+                        int first = n * rows;
+                        if (rows == 1) {
+                            votes.data[n] += output[n] >= 0.5 ? weights[m] : 0;
+                            continue;
+                        }
+                        int best = first;
+                        for (int i = first + 1; i < first + rows; i++) {
+                            if (output[i] > output[best]) {
+                                best = i;
+                            }
+                        }
+                        votes.data[best] += weights[m];
+                    }
+                }
+                return votes;
+            }
+        };
+
+        /**
+         * Combines the outputs of the members.
+         *
+         * @param outputs the outputs of each member, one instance per column
+         * @param weights the weights of the members, summing to 1
+         * @return the combined outputs, one instance per column
+         */
+        abstract DoubleMatrix combine(DoubleMatrix[] outputs, double[] weights);
+    }
+
+    private final NeuralNetwork[] members;
+    private final Combination combination;
+    // normalized weights of the members
+    private final double[] memberWeights;
+    // first layer weights and biases of all the members, stacked by rows
+    private final DoubleMatrix stackedWeights;
+    private final DoubleMatrix stackedBiases;
+    // first row of each member in the stacked matrixes, and total rows
+    private final int[] memberRows;
+    private final ComputeBackends backend;
+
+    /**
+     * Constructs an ensemble of equally weighted members.
+     *
+     * @param combination the combination of the outputs of the members
+     * @param members the members of the ensemble
+     */
+    public EnsembleNetwork(Combination combination, NeuralNetwork... members) {
+        this(combination, equalWeights(members.length), members);
+    }
+
+    /**
+     * Constructs an ensemble of weighted members. The weights are used by the
+     * {@link Combination#WEIGHTED} and {@link Combination#VOTE} combinations.
+     *
+     * @param combination the combination of the outputs of the members
+     * @param weights the non-negative weights of the members, normalized to
+     *            sum to 1
+     * @param members the members of the ensemble
+     */
+    public EnsembleNetwork(Combination combination, double[] weights, NeuralNetwork... members) {
+        if (members.length < 1 || weights.length != members.length) {
+            throw new IllegalArgumentException("One weight per member is needed");
+        }
+        int inputSize = members[0].getInputSize();
+        int[] lastSizes = members[0].getLayerSizes();
+        int outputSize = lastSizes[lastSizes.length - 1];
+        double totalWeight = 0;
+        for (int m = 0; m < members.length; m++) {
+            int[] layerSizes = members[m].getLayerSizes();
+            if (members[m].getInputSize() != inputSize
+                    || layerSizes[layerSizes.length - 1] != outputSize) {
+                throw new IllegalArgumentException("Members must have the same input and "
+                        + "output sizes");
+            }
+            if (members[m].getBackend() != members[0].getBackend()) {
+                throw new IllegalArgumentException("Members must use the same backend");
+            }
+            if (members[m].getImageLayers().length > 0) {
+                throw new IllegalArgumentException("Members with image layers are not "
+                        + "supported");
+            }
+            if (weights[m] < 0) {
+                throw new IllegalArgumentException("Member weights must be non-negative");
+            }
+            totalWeight += weights[m];
+        }
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("Member weights must not be all zero");
+        }
+        this.combination = combination;
+        this.memberWeights = new double[members.length];
+        this.members = new NeuralNetwork[members.length];
+        this.memberRows = new int[members.length + 1];
+        for (int m = 0; m < members.length; m++) {
+            memberWeights[m] = weights[m] / totalWeight;
+            this.members[m] = members[m].copy();
+            this.members[m].freeze();
+            memberRows[m + 1] = memberRows[m] + this.members[m].getLayerSizes()[1];
+        }
+        this.backend = members[0].getBackend();
+        this.stackedWeights = new DoubleMatrix(memberRows[members.length], inputSize);
+        this.stackedBiases = new DoubleMatrix(memberRows[members.length], 1);
+        for (int m = 0; m < members.length; m++) {
+            DoubleMatrix weights0 = this.members[m].getWeights()[0];
+            for (int j = 0; j < inputSize; j++) {
+                System.arraycopy(weights0.data, j * weights0.rows, stackedWeights.data, j
+                        * stackedWeights.rows + memberRows[m], weights0.rows);
+            }
+            System.arraycopy(this.members[m].getBiases()[0].data, 0, stackedBiases.data,
+                    memberRows[m], weights0.rows);
+        }
+    }
+
+    private static double[] equalWeights(int numMembers) {
+        double[] weights = new double[numMembers];
+        Arrays.fill(weights, 1);
+        return weights;
+    }
+
+    public int getNumMembers() {
+        return members.length;
+    }
+
+    public Combination getCombination() {
+        return combination;
+    }
+
+    /**
+     * Computes the outputs of each member for the given inputs.
+     *
+     * @param input the raw inputs, one input per column
+     * @return the outputs of each member, one output per column
+     */
+    public DoubleMatrix[] feedForwardMembers(DoubleMatrix input) {
+        int batchSize = input.columns;
+        // first layer of all the members at once
+        DoubleMatrix stackedZetas = backend.mmul(stackedWeights, input);
+        backend.addiColumnVector(stackedZetas, stackedBiases);
+        DoubleMatrix[] outputs = new DoubleMatrix[members.length];
+        for (int m = 0; m < members.length; m++) {
+            NeuralNetwork member = members[m];
+            int rows = memberRows[m + 1] - memberRows[m];
+            DoubleMatrix zetas = new DoubleMatrix(rows, batchSize);
+            for (int n = 0; n < batchSize; n++) {
+                System.arraycopy(stackedZetas.data, n * stackedZetas.rows + memberRows[m],
+                        zetas.data, n * rows, rows);
+            }
+            DoubleMatrix activations = member.getActivationFunction().activate(zetas, backend);
+            outputs[m] = member.feedForward(activations, 2);
+        }
+        return outputs;
+    }
+
+    /**
+     * Computes the combined output of the ensemble for the given inputs.
+     *
+     * @param input the raw inputs, one input per column
+     * @return the combined outputs, one output per column
+     */
+    public DoubleMatrix feedForward(DoubleMatrix input) {
+        return combination.combine(feedForwardMembers(input), memberWeights);
+    }
+}
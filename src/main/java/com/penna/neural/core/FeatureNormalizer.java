@@ -0,0 +1,309 @@
+package com.penna.neural.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ExecutionConfig;
+
+/**
+ * Per-feature normalization of the inputs of a network. The statistics of
+ * each feature (mean and variance, with Welford's algorithm, and range) are
+ * accumulated in a single pass over the instances; statistics accumulated
+ * separately over parts of a dataset can be merged, so that a dataset is
+ * fitted in parallel. Each feature is then transformed as
+ * <code>(x - offset) * scale</code>, where offset and scale depend on the
+ * normalization method.
+ *
+ * A feature that is constant over the fitted instances, e.g. a border pixel
+ * that is always blank, has scale 0 and is always transformed to 0: the
+ * network never learned from its values, so values unseen in training, such
+ * as a stroke of ink on the border of a test image, are ignored rather than
+ * fed unscaled into the first layer.
+ *
+ * A fitted normalizer can transform datasets in place, or be attached to a
+ * network with {@link NeuralNetwork#setInputNormalizer(FeatureNormalizer)}, in
+ * which case it is saved in the network checkpoints and applied to the
+ * inputs of every forward pass.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class FeatureNormalizer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Normalization methods.
+     */
+    public enum Method {
+
+        /**
+         * Standardization to zero mean and unit variance.
+         */
+        STANDARD {
+            @Override
+            double offset(FeatureNormalizer n, int feature) {
+                return n.means[feature];
+            }
+
+            @Override
+            double spread(FeatureNormalizer n, int feature) {
+                return Math.sqrt(n.squaredDeviations[feature] / n.count);
+            }
+        },
+
+        /**
+         * Min-max scaling to [0, 1].
+         */
+        MIN_MAX {
+            @Override
+            double offset(FeatureNormalizer n, int feature) {
+                return n.mins[feature];
+            }
+
+            @Override
+            double spread(FeatureNormalizer n, int feature) {
+                return n.maxs[feature] - n.mins[feature];
+            }
+        };
+
+        abstract double offset(FeatureNormalizer n, int feature);
+
+        // the scale of a feature is the inverse of its spread
+        abstract double spread(FeatureNormalizer n, int feature);
+    }
+
+    private final Method method;
+    private final int numFeatures;
+    private long count;
+    private final double[] means;
+    // sums of the squared deviations from the mean
+    private final double[] squaredDeviations;
+    private final double[] mins;
+    private final double[] maxs;
+    // transformation derived from the statistics, null until first needed;
+    // offsets are published by the write of scales
+    private transient double[] offsets;
+    private transient volatile double[] scales;
+
+    /**
+     * Constructs a normalizer with no accumulated statistics.
+     *
+     * @param numFeatures number of features of the instances
+     * @param method the normalization method
+     */
+    public FeatureNormalizer(int numFeatures, Method method) {
+        if (numFeatures < 1) {
+            throw new IllegalArgumentException("Number of features must be positive");
+        }
+        this.method = method;
+        this.numFeatures = numFeatures;
+        this.means = new double[numFeatures];
+        this.squaredDeviations = new double[numFeatures];
+        this.mins = new double[numFeatures];
+        this.maxs = new double[numFeatures];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Fits a normalizer to the features of a dataset. The dataset is split in
+     * contiguous parts that are accumulated in parallel, by the workers of the
+     * default {@link ExecutionConfig}, and then merged.
+     *
+     * @param dataset the dataset
+     * @param method the normalization method
+     * @return the fitted normalizer
+     */
+    public static FeatureNormalizer fit(final Dataset dataset, final Method method) {
+        if (dataset.size() == 0) {
+            throw new IllegalArgumentException("Cannot fit an empty dataset");
+        }
+        final int numFeatures = dataset.getInstance(0).getFeatures().length;
+        ExecutionConfig config = ExecutionConfig.getDefault();
+        int numThreads = Math.min(config.getNumWorkers(), dataset.size());
+        final int partSize = (dataset.size() + numThreads - 1) / numThreads;
+        List<Callable<FeatureNormalizer>> tasks = new ArrayList<Callable<FeatureNormalizer>>();
+        for (int start = 0; start < dataset.size(); start += partSize) {
+            final int from = start;
+            tasks.add(new Callable<FeatureNormalizer>() {
+                public FeatureNormalizer call() {
+                    FeatureNormalizer part = new FeatureNormalizer(numFeatures, method);
+                    int to = Math.min(from + partSize, dataset.size());
+                    for (int i = from; i < to; i++) {
+                        part.accumulate(dataset.getInstance(i).getFeatures());
+                    }
+                    return part;
+                }
+            });
+        }
+        try {
+            FeatureNormalizer normalizer = new FeatureNormalizer(numFeatures, method);
+            for (FeatureNormalizer part : config.invokeAll(tasks)) {
+                normalizer.merge(part);
+            }
+            return normalizer;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fitting normalizer", ie);
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException("Failed to fit normalizer", ee.getCause());
+        }
+    }
+
+    /**
+     * Accumulates the statistics of one or more instances.
+     *
+     * @param features the features of the instances, one instance per column
+     */
+    public void accumulate(DoubleMatrix features) {
+        checkRows(features);
+        double[] data = features.data;
+        for (int column = 0; column < features.columns; column++) {
+            count++;
+            int offset = column * numFeatures;
+            for (int j = 0; j < numFeatures; j++) {
+                double x = data[offset + j];
+                double delta = x - means[j];
+                means[j] += delta / count;
+                squaredDeviations[j] += delta * (x - means[j]);
+                if (x < mins[j]) {
+                    mins[j] = x;
+                }
+                if (x > maxs[j]) {
+                    maxs[j] = x;
+                }
+            }
+        }
+        offsets = null;
+        scales = null;
+    }
+
+    /**
+     * Merges the statistics accumulated by another normalizer into this one.
+     *
+     * @param other a normalizer for the same features
+     */
+    public void merge(FeatureNormalizer other) {
+        if (other.numFeatures != numFeatures) {
+            throw new IllegalArgumentException("Normalizers have different numbers of features");
+        }
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        for (int j = 0; j < numFeatures; j++) {
+            double delta = other.means[j] - means[j];
+            means[j] += delta * other.count / total;
+            squaredDeviations[j] += other.squaredDeviations[j] + delta * delta * count
+                    * other.count / total;
+            mins[j] = Math.min(mins[j], other.mins[j]);
+            maxs[j] = Math.max(maxs[j], other.maxs[j]);
+        }
+        count = total;
+        offsets = null;
+        scales = null;
+    }
+
+    /**
+     * Normalizes features in place.
+     *
+     * @param features the features of the instances, one instance per column
+     * @return the normalized features
+     */
+    public DoubleMatrix transform(DoubleMatrix features) {
+        checkRows(features);
+        prepare();
+        double[] data = features.data;
+        for (int column = 0; column < features.columns; column++) {
+            int offset = column * numFeatures;
+            for (int j = 0; j < numFeatures; j++) {
+                data[offset + j] = (data[offset + j] - offsets[j]) * scales[j];
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Normalizes the features of all the instances of a dataset in place.
+     * Instances must not be shared with other datasets that are not meant to
+     * be normalized.
+     *
+     * @param dataset the dataset
+     */
+    public void transform(Dataset dataset) {
+        for (Instance instance : dataset) {
+            transform(instance.getFeatures());
+        }
+    }
+
+    /**
+     * Folds the normalization into the weights and biases of the first layer
+     * of a network, so that the layer computes the same zetas from raw
+     * features: w' = w * diag(scale), b' = b - w' * offset.
+     *
+     * @param weights the weights of the first layer, overwritten
+     * @param biases the biases of the first layer, overwritten
+     */
+    void fold(DoubleMatrix weights, DoubleMatrix biases) {
+        prepare();
+        weights.muliRowVector(new DoubleMatrix(1, numFeatures, scales));
+        for (int j = 0; j < numFeatures; j++) {
+            for (int i = 0; i < weights.rows; i++) {
+                biases.data[i] -= weights.data[j * weights.rows + i] * offsets[j];
+            }
+        }
+    }
+
+    private void prepare() {
+        if (scales != null) {
+            return;
+        }
+        if (count == 0) {
+            throw new IllegalStateException("Normalizer has not been fitted");
+        }
+        double[] newOffsets = new double[numFeatures];
+        double[] newScales = new double[numFeatures];
+        for (int j = 0; j < numFeatures; j++) {
+            newOffsets[j] = method.offset(this, j);
+            double spread = method.spread(this, j);
+            // constant features are mapped to 0 whatever their value
+            newScales[j] = spread > 0 ? 1 / spread : 0;
+        }
+        offsets = newOffsets;
+        scales = newScales;
+    }
+
+    private void checkRows(DoubleMatrix features) {
+        if (features.rows != numFeatures) {
+            throw new IllegalArgumentException("Features must have " + numFeatures + " rows");
+        }
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * Returns the number of instances the statistics were accumulated over.
+     *
+     * @return the number of instances
+     */
+    public long getCount() {
+        return count;
+    }
+
+    FeatureNormalizer copy() {
+        FeatureNormalizer copy = new FeatureNormalizer(numFeatures, method);
+        copy.merge(this);
+        return copy;
+    }
+}
@@ -0,0 +1,112 @@
+package com.penna.neural.core;
+
+import java.io.Serializable;
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ComputeBackends;
+
+/**
+ * A layer processing images before the fully connected layers of a network,
+ * see {@link NeuralNetwork#setImageLayers(ImageLayer...)}. Images are stored
+ * as columns of pixels in row-major order, with the channels of each pixel
+ * stored next to each other: the value of channel c of pixel (y, x) is at row
+ * <code>(y * width + x) * channels + c</code>. A gray-scale image is then
+ * simply its pixels in row-major order, as read by
+ * {@link com.penna.neural.utils.MnistUtils}.
+ *
+ * Matrixes hold one instance per column.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public abstract class ImageLayer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final int inputChannels;
+    protected final int inputHeight;
+    protected final int inputWidth;
+
+    protected ImageLayer(int inputChannels, int inputHeight, int inputWidth) {
+        if (inputChannels < 1 || inputHeight < 1 || inputWidth < 1) {
+            throw new IllegalArgumentException("Image dimensions must be positive");
+        }
+        this.inputChannels = inputChannels;
+        this.inputHeight = inputHeight;
+        this.inputWidth = inputWidth;
+    }
+
+    public int getInputSize() {
+        return inputChannels * inputHeight * inputWidth;
+    }
+
+    public int getOutputSize() {
+        return getOutputChannels() * getOutputHeight() * getOutputWidth();
+    }
+
+    public abstract int getOutputChannels();
+
+    public abstract int getOutputHeight();
+
+    public abstract int getOutputWidth();
+
+    /**
+     * Randomly initializes the parameters of the layer.
+     *
+     * @param random the generator to draw the parameters from
+     */
+    abstract void initialize(Random random);
+
+    /**
+     * Computes the output of the layer.
+     *
+     * @param inputs the input images, one instance per column
+     * @param backend the backend computing matrix products and activations
+     * @param training true to keep what the backward pass needs
+     * @return the output images, one instance per column
+     */
+    abstract DoubleMatrix forward(DoubleMatrix inputs, ComputeBackends backend, boolean training);
+
+    /**
+     * Propagates the derivatives of the cost back through the last training
+     * forward pass, and computes the gradients of the parameters.
+     *
+     * @param deltas the derivatives of the cost w.r.t. the output of the
+     *            layer, overwritten
+     * @param backend the backend computing matrix products
+     * @param propagate false if the derivatives w.r.t. the input are not
+     *            needed, as for the first layer
+     * @return the derivatives of the cost w.r.t. the input of the layer, or
+     *         null if not propagated
+     */
+    abstract DoubleMatrix backward(DoubleMatrix deltas, ComputeBackends backend,
+            boolean propagate);
+
+    /**
+     * Updates the parameters with the gradients of the last backward pass.
+     *
+     * @param step the learning rate divided by the minibatch size
+     * @param decay the L2 shrinking factor of the weights, 1 for no
+     *            regularization
+     * @param backend the backend computing the update
+     */
+    abstract void update(double step, double decay, ComputeBackends backend);
+
+    /**
+     * Returns the number of multiply-add operations of the matrix products of
+     * a forward pass, for profiling.
+     *
+     * @param batchSize the number of instances of the pass
+     * @return the number of multiply-adds, 0 if the layer has no products
+     */
+    abstract long multiplyAdds(int batchSize);
+
+    /**
+     * Returns the parameter matrixes of the layer.
+     *
+     * @return the parameters, none if the layer has no parameters
+     */
+    abstract DoubleMatrix[] parameters();
+
+    abstract ImageLayer copy();
+}
@@ -0,0 +1,155 @@
+package com.penna.neural.core;
+
+/**
+ * Measurements of one pass (training forward or backward, or inference)
+ * through one layer, summed over the runs of a {@link NetworkProfiler}. Matrix
+ * products are measured separately from the element-wise activation
+ * functions, so that the two can be compared with the peak compute throughput
+ * and memory bandwidth of the machine.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class LayerProfile {
+
+    private final String layer;
+    private final String pass;
+    private long nanos;
+    private long mmulNanos;
+    private long mmulFlops;
+    private long mmulBytes;
+    private long elementwiseNanos;
+    private long elementwiseBytes;
+    // -1 if the JVM cannot measure the allocations of a thread
+    private long allocatedBytes;
+
+    LayerProfile(String layer, String pass) {
+        this.layer = layer;
+        this.pass = pass;
+    }
+
+    public String getLayer() {
+        return layer;
+    }
+
+    /**
+     * Returns the pass the measurements refer to.
+     *
+     * @return "forward" or "backward" for training, "inference" for
+     *         feedforward
+     */
+    public String getPass() {
+        return pass;
+    }
+
+    /**
+     * Returns the total time of the pass through the layer.
+     *
+     * @return the wall time in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getMmulNanos() {
+        return mmulNanos;
+    }
+
+    /**
+     * Returns the number of floating point operations of the matrix products,
+     * two per multiply-add.
+     *
+     * @return the number of operations
+     */
+    public long getMmulFlops() {
+        return mmulFlops;
+    }
+
+    /**
+     * Returns the size of the operands and results of the matrix products,
+     * i.e. the memory traffic of the products if each operand was read once.
+     *
+     * @return the number of bytes
+     */
+    public long getMmulBytes() {
+        return mmulBytes;
+    }
+
+    public long getElementwiseNanos() {
+        return elementwiseNanos;
+    }
+
+    /**
+     * Returns the bytes read and written by the activation functions and
+     * their derivatives, counting each input and output once.
+     *
+     * @return the number of bytes
+     */
+    public long getElementwiseBytes() {
+        return elementwiseBytes;
+    }
+
+    /**
+     * Returns the bytes allocated on the heap during the pass.
+     *
+     * @return the number of bytes, or -1 if not supported by the JVM
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the throughput achieved by the matrix products.
+     *
+     * @return the throughput in GFLOP/s, 0 if the layer has no products
+     */
+    public double getMmulGflops() {
+        return mmulNanos == 0 ? 0 : (double) mmulFlops / mmulNanos;
+    }
+
+    /**
+     * Returns the bandwidth achieved by the activation functions.
+     *
+     * @return the bandwidth in GB/s, 0 if the layer has no activations
+     */
+    public double getElementwiseBandwidth() {
+        return elementwiseNanos == 0 ? 0 : (double) elementwiseBytes / elementwiseNanos;
+    }
+
+    /**
+     * Returns the floating point operations per byte of memory traffic of
+     * the pass. Low values mean that the layer is bound by memory bandwidth
+     * rather than by compute throughput.
+     *
+     * @return the arithmetic intensity in FLOP/byte
+     */
+    public double getArithmeticIntensity() {
+        long bytes = mmulBytes + elementwiseBytes;
+        return bytes == 0 ? 0 : (double) mmulFlops / bytes;
+    }
+
+    void addTime(long nanos) {
+        this.nanos += nanos;
+    }
+
+    void addMmul(long nanos, int rows, int inner, int columns) {
+        mmulNanos += nanos;
+        mmulFlops += 2L * rows * inner * columns;
+        mmulBytes += 8L * ((long) rows * inner + (long) inner * columns + (long) rows * columns);
+    }
+
+    void addMmul(long nanos, long multiplyAdds) {
+        mmulNanos += nanos;
+        mmulFlops += 2 * multiplyAdds;
+    }
+
+    void addElementwise(long nanos, long elements) {
+        elementwiseNanos += nanos;
+        // one input read and one output written
+        elementwiseBytes += 16 * elements;
+    }
+
+    void addAllocated(long bytes) {
+        allocatedBytes = bytes < 0 || allocatedBytes < 0 ? -1 : allocatedBytes + bytes;
+    }
+}
@@ -0,0 +1,135 @@
+package com.penna.neural.core;
+
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ComputeBackends;
+
+/**
+ * Max pooling over non-overlapping square windows, independently for each
+ * channel. Pixels at the right and bottom borders that do not fill a whole
+ * window are dropped.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class MaxPoolingLayer extends ImageLayer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int poolSize;
+    private final int outputHeight;
+    private final int outputWidth;
+    // index in the input data of the maximum of each output element of the
+    // last training minibatch
+    private transient int[] maxIndexes;
+
+    /**
+     * Constructs a max pooling layer.
+     *
+     * @param inputChannels number of channels of the input images
+     * @param inputHeight height of the input images
+     * @param inputWidth width of the input images
+     * @param poolSize height and width of the pooling windows
+     */
+    public MaxPoolingLayer(int inputChannels, int inputHeight, int inputWidth, int poolSize) {
+        super(inputChannels, inputHeight, inputWidth);
+        if (poolSize < 1 || poolSize > inputHeight || poolSize > inputWidth) {
+            throw new IllegalArgumentException("Invalid pooling size");
+        }
+        this.poolSize = poolSize;
+        this.outputHeight = inputHeight / poolSize;
+        this.outputWidth = inputWidth / poolSize;
+    }
+
+    @Override
+    public int getOutputChannels() {
+        return inputChannels;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    @Override
+    void initialize(Random random) {
+        // no parameters
+    }
+
+    @Override
+    DoubleMatrix forward(DoubleMatrix inputs, ComputeBackends backend, boolean training) {
+        int inputSize = getInputSize();
+        int outputSize = getOutputSize();
+        DoubleMatrix outputs = new DoubleMatrix(outputSize, inputs.columns);
+        int[] indexes = training ? new int[outputs.length] : null;
+        double[] in = inputs.data;
+        double[] out = outputs.data;
+        for (int n = 0; n < inputs.columns; n++) {
+            for (int oy = 0; oy < outputHeight; oy++) {
+                for (int ox = 0; ox < outputWidth; ox++) {
+                    int o = n * outputSize + (oy * outputWidth + ox) * inputChannels;
+                    int first = n * inputSize + (oy * poolSize * inputWidth + ox * poolSize)
+                            * inputChannels;
+                    for (int c = 0; c < inputChannels; c++) {
+                        int maxIndex = first + c;
+                        for (int py = 0; py < poolSize; py++) {
+                            int row = first + py * inputWidth * inputChannels + c;
+                            for (int px = 0; px < poolSize; px++) {
+                                int i = row + px * inputChannels;
+                                if (in[i] > in[maxIndex]) {
+                                    maxIndex = i;
+                                }
+                            }
+                        }
+                        out[o + c] = in[maxIndex];
+                        if (training) {
+                            indexes[o + c] = maxIndex;
+                        }
+                    }
+                }
+            }
+        }
+        if (training) {
+            maxIndexes = indexes;
+        }
+        return outputs;
+    }
+
+    @Override
+    DoubleMatrix backward(DoubleMatrix deltas, ComputeBackends backend, boolean propagate) {
+        if (!propagate) {
+            return null;
+        }
+        // only the maximum of each window receives the error
+        DoubleMatrix inputDeltas = new DoubleMatrix(getInputSize(), deltas.columns);
+        for (int i = 0; i < deltas.length; i++) {
+            inputDeltas.data[maxIndexes[i]] += deltas.data[i];
+        }
+        return inputDeltas;
+    }
+
+    @Override
+    void update(double step, double decay, ComputeBackends backend) {
+        // no parameters
+    }
+
+    @Override
+    long multiplyAdds(int batchSize) {
+        return 0;
+    }
+
+    @Override
+    DoubleMatrix[] parameters() {
+        return new DoubleMatrix[0];
+    }
+
+    @Override
+    ImageLayer copy() {
+        return new MaxPoolingLayer(inputChannels, inputHeight, inputWidth, poolSize);
+    }
+}
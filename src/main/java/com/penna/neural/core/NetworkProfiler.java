@@ -0,0 +1,247 @@
+package com.penna.neural.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.exceptions.DatasetInitializationException;
+import com.penna.neural.utils.RandomUtils;
+
+/**
+ * Profiles the passes of a network, layer by layer, for a given minibatch
+ * size. Each run trains a copy of the network on a random minibatch, then
+ * feeds a random minibatch forward through it, so that the passes measured
+ * are those of {@link NeuralNetwork}, with the input normalizer, dropout,
+ * batch normalization, pruning masks and sparse weights of the network. The
+ * matrix products and the activation functions of each layer are timed, and
+ * the memory allocated by each layer is measured. The report tells whether a
+ * layer is bound by the compute throughput of the matrix products or by the
+ * memory bandwidth of the element-wise operations.
+ *
+ * The profiled network is not modified. The passes run on the calling thread
+ * with the backend of the network. Image layers are timed as a whole, so
+ * their matrix product throughput includes the cost of rearranging the
+ * images.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class NetworkProfiler {
+
+    static final String FORWARD = "forward";
+    static final String BACKWARD = "backward";
+    static final String INFERENCE = "inference";
+
+    // small enough for the trained copy to keep the parameters of the network
+    private static final double LEARN_RATE = 1e-9;
+
+    private final NeuralNetwork network;
+    private final int batchSize;
+    private final Random random;
+    private final int numImageLayers;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    // profiles of the image layers, then of the fully connected layers
+    private final LayerProfile[] forwardProfiles;
+    private final LayerProfile[] backwardProfiles;
+    private final LayerProfile[] inferenceProfiles;
+    private int numRuns;
+    // layer being measured, and start of the layer and of its current step
+    private LayerProfile current;
+    private long layerStart;
+    private long layerAllocated;
+    private long stepStart;
+
+    /**
+     * Constructs a profiler.
+     *
+     * @param network the network to profile
+     * @param batchSize the number of instances of the profiled minibatches
+     * @param seed the seed of the random minibatches
+     */
+    public NetworkProfiler(NeuralNetwork network, int batchSize, long seed) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.network = network.copy();
+        this.batchSize = batchSize;
+        this.random = new Random(seed);
+        this.numImageLayers = network.getImageLayers().length;
+        this.forwardProfiles = newProfiles(FORWARD);
+        this.backwardProfiles = newProfiles(BACKWARD);
+        this.inferenceProfiles = newProfiles(INFERENCE);
+    }
+
+    private LayerProfile[] newProfiles(String pass) {
+        ImageLayer[] imageLayers = network.getImageLayers();
+        DoubleMatrix[] weights = network.getWeights();
+        LayerProfile[] profiles = new LayerProfile[imageLayers.length + weights.length];
+        for (int i = 0; i < imageLayers.length; i++) {
+            profiles[i] = new LayerProfile("image " + (i + 1) + " "
+                    + imageLayers[i].getClass().getSimpleName(), pass);
+        }
+        for (int layer = 1; layer <= weights.length; layer++) {
+            profiles[imageLayers.length + layer - 1] = new LayerProfile("dense " + layer + " "
+                    + weights[layer - 1].columns + "x" + weights[layer - 1].rows, pass);
+        }
+        return profiles;
+    }
+
+    /**
+     * Profiles a number of runs, after a warm-up run that is not recorded.
+     * Measurements are added to those of the previous calls.
+     *
+     * @param numRuns the number of recorded runs
+     */
+    public void run(int numRuns) {
+        // let the JIT compiler optimize the passes first
+        run();
+        network.setProfiler(this);
+        try {
+            for (int i = 0; i < numRuns; i++) {
+                run();
+            }
+        } finally {
+            network.setProfiler(null);
+        }
+        this.numRuns += numRuns;
+    }
+
+    /**
+     * Returns the measurements of the forward passes, then of the backward
+     * passes, then of the inference passes, of every layer in network order.
+     *
+     * @return the profiles of the layers
+     */
+    public List<LayerProfile> getLayerProfiles() {
+        List<LayerProfile> profiles = new ArrayList<LayerProfile>();
+        profiles.addAll(Arrays.asList(forwardProfiles));
+        profiles.addAll(Arrays.asList(backwardProfiles));
+        profiles.addAll(Arrays.asList(inferenceProfiles));
+        return profiles;
+    }
+
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    private void run() {
+        int inputSize = network.getInputSize();
+        int[] layerSizes = network.getLayerSizes();
+        Dataset miniBatch;
+        try {
+            miniBatch = new Dataset(inputSize, layerSizes[layerSizes.length - 1], batchSize,
+                    random);
+        } catch (DatasetInitializationException die) {
+            // the sizes of the network and the batch size are positive
+            throw new IllegalStateException(die);
+        }
+        network.trainMiniBatch(miniBatch, LEARN_RATE, batchSize);
+        network.feedForward(RandomUtils.randn(inputSize, batchSize, random));
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported()
+                    && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private LayerProfile[] profiles(String pass) {
+        if (FORWARD.equals(pass)) {
+            return forwardProfiles;
+        }
+        return BACKWARD.equals(pass) ? backwardProfiles : inferenceProfiles;
+    }
+
+    /**
+     * Starts the measurement of a pass through an image layer.
+     */
+    void beginImageLayer(String pass, int index) {
+        beginLayer(profiles(pass)[index]);
+    }
+
+    /**
+     * Starts the measurement of a pass through a fully connected layer,
+     * numbered from 1 as in the network.
+     */
+    void beginDenseLayer(String pass, int layer) {
+        beginLayer(profiles(pass)[numImageLayers + layer - 1]);
+    }
+
+    private void beginLayer(LayerProfile profile) {
+        current = profile;
+        layerStart = System.nanoTime();
+        layerAllocated = allocatedBytes();
+    }
+
+    void beginProduct() {
+        stepStart = System.nanoTime();
+    }
+
+    /**
+     * Ends the measurement of a dense product of a rows x inner matrix by an
+     * inner x columns matrix.
+     */
+    void endProduct(int rows, int inner, int columns) {
+        current.addMmul(System.nanoTime() - stepStart, rows, inner, columns);
+    }
+
+    /**
+     * Ends the measurement of a product, such as a sparse product or the
+     * products of an image layer, given its number of multiply-adds.
+     */
+    void endProduct(long multiplyAdds) {
+        current.addMmul(System.nanoTime() - stepStart, multiplyAdds);
+    }
+
+    void beginElementwise() {
+        stepStart = System.nanoTime();
+    }
+
+    void endElementwise(long elements) {
+        current.addElementwise(System.nanoTime() - stepStart, elements);
+    }
+
+    void endLayer() {
+        current.addTime(System.nanoTime() - layerStart);
+        long allocated = allocatedBytes();
+        current.addAllocated(layerAllocated < 0 ? -1 : allocated - layerAllocated);
+        current = null;
+    }
+
+    /**
+     * Returns a table with the measurements of each pass of each layer,
+     * averaged over the runs.
+     *
+     * @return the report
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-34s %-9s %9s %9s %9s %9s %10s%n", "layer", "pass",
+                "time ms", "GFLOP/s", "act GB/s", "FLOP/B", "alloc KB"));
+        long totalNanos = 0;
+        int runs = Math.max(numRuns, 1);
+        for (LayerProfile profile : getLayerProfiles()) {
+            totalNanos += profile.getNanos();
+            long allocated = profile.getAllocatedBytes();
+            report.append(String.format("%-34s %-9s %9.3f %9.2f %9.2f %9.2f %10s%n",
+                    profile.getLayer(), profile.getPass(), profile.getNanos() / 1e6 / runs,
+                    profile.getMmulGflops(), profile.getElementwiseBandwidth(),
+                    profile.getArithmeticIntensity(), allocated < 0 ? "n/a" : String.format(
+                            "%.1f", allocated / 1024.0 / runs)));
+        }
+        report.append(String.format("%-34s %-9s %9.3f%n", "total", "", totalNanos / 1e6 / runs));
+        report.append("backend " + network.getBackend() + ", batch size " + batchSize + ", "
+                + numRuns + " runs");
+        return report.toString();
+    }
+}
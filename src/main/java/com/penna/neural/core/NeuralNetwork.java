@@ -1,13 +1,24 @@
 package com.penna.neural.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ComputeBackends;
+import com.penna.neural.backends.SparseMatrix;
 import com.penna.neural.exceptions.NetworkInitializationException;
 import com.penna.neural.exceptions.NoLabelException;
 import com.penna.neural.functions.ActivationFunctions;
 import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.functions.WeightInitializers;
 import com.penna.neural.utils.DoubleMatrixUtils;
 import com.penna.neural.utils.MnistUtils;
+import com.penna.neural.utils.RandomUtils;
 
 /**
  * Implementation of a simple neural network. Activations, weights and biases
@@ -23,8 +34,13 @@ import com.penna.neural.utils.MnistUtils;
  * <ul>
  * <li>sigmoid</li>
  * <li>tanh</li>
+ * <li>fast approximations of sigmoid and tanh</li>
  * </ul>
- * </ul> Training is performed by gradient descent/backtracking.
+ * </ul> Training is performed by minibatch gradient descent/backtracking, with
+ * optional L2 regularization, dropout and batch normalization. Inputs can be
+ * normalized by a {@link FeatureNormalizer} attached to the network, and
+ * images can be processed by convolutional and pooling layers (see
+ * {@link ImageLayer}) before the fully connected layers.
  * 
  * @author mpennacchiotti
  * 
@@ -34,6 +50,11 @@ public class NeuralNetwork {
     private static final Logger LOGGER = Logger.getLogger(MnistUtils.class.getName());
     private static final int MAX_LAYER_SIZE = 10000;
     private static final int MAX_NUM_LAYERS = 10;
+    // above this density sparse weights are never faster than dense ones
+    private static final double MAX_SPARSE_DENSITY = 0.5;
+    // number of inputs of the products timed to choose sparse or dense weights
+    private static final int SPARSE_PROBE_BATCH = 32;
+    private static final int SPARSE_PROBE_RUNS = 5;
 
     private final int totLayer;
     // number of neurons for each layer
@@ -46,10 +67,51 @@ public class NeuralNetwork {
     private CostFunctions costFunction;
     // activation function used by the network
     private ActivationFunctions activationFunction;
+    // writer of periodic training checkpoints, null if checkpointing is off
+    private CheckpointWriter checkpointWriter;
+    // number of minibatches between two checkpoints
+    private int checkpointInterval;
+    // L2 regularization parameter, zero if regularization is off
+    private double weightDecay;
+    // probability of dropping a hidden neuron during training
+    private double dropoutRate;
+    // dropout masks and masked activations of each layer, reused by every
+    // minibatch of the same size; only hidden layers are used
+    private DoubleMatrix[] dropoutMasks;
+    private DoubleMatrix[] droppedActivations;
+    // batch normalization stage of each layer, null if the layer has none
+    private BatchNormalization[] batchNormalizations;
+    // normalization of the inputs, null if inputs are used as they are
+    private FeatureNormalizer inputNormalizer;
+    // image layers before the first fully connected layer
+    private ImageLayer[] imageLayers = new ImageLayer[0];
+    // masks of the weights kept by pruning, null if the network is not pruned
+    private DoubleMatrix[] pruningMasks;
+    // layers whose feedforward uses sparse weights
+    private boolean[] sparseLayers;
+    // sparse copies of the weights of the sparse layers
+    private volatile SparseWeights sparseWeights;
+    // backend computing matrix products and activations
+    private ComputeBackends backend = ComputeBackends.getDefault();
+    // incremented at every change of the parameters
+    private final AtomicLong parameterVersion = new AtomicLong();
+    // generator of the dropout masks of the current minibatch, derived from
+    // the dropout seed and the number of minibatches trained; only used by
+    // the training thread
+    private SplittableRandom dropoutRandom;
+    private long dropoutSeed;
+    // number of minibatches trained, checkpointed with the dropout seed so
+    // that a resumed run draws the same dropout masks
+    private long numTrainedBatches;
+    // generator the network was initialized from, seeds the dropout masks
+    private final Random random;
+    // receives the timings of the passes, null if the network is not profiled
+    private NetworkProfiler profiler;
 
     /**
      * Construct a neural network, given the specifics in input. All parameters
-     * are initialized randomly. This is the preferred network constructor
+     * are initialized randomly, with the default initialization scheme for the
+     * activation function. This is the preferred network constructor
      * 
      * @param layerSizes an array containing the number of neurons for each
      *            layer
@@ -59,12 +121,64 @@ public class NeuralNetwork {
      */
     public NeuralNetwork(int[] layerSizes, CostFunctions costFunc, ActivationFunctions activFunc)
             throws NetworkInitializationException {
+        this(layerSizes, costFunc, activFunc, null, new Random());
+    }
+
+    /**
+     * Construct a neural network, given the specifics in input. All parameters
+     * are initialized randomly from the given seed, so that networks built
+     * with the same seed are identical.
+     * 
+     * @param layerSizes an array containing the number of neurons for each
+     *            layer
+     * @param costFunc the cost function that will be use by the netowrk
+     * @param activFunc the activation function that will be use by the netowrk
+     * @param seed the seed of the random initialization
+     * @throws NetworkInitializationException
+     */
+    public NeuralNetwork(int[] layerSizes, CostFunctions costFunc, ActivationFunctions activFunc,
+            long seed) throws NetworkInitializationException {
+        this(layerSizes, costFunc, activFunc, null, new Random(seed));
+    }
+
+    /**
+     * Construct a neural network, given the specifics in input. The
+     * parameters of each layer are initialized randomly from the given seed,
+     * with the given initialization scheme.
+     * 
+     * @param layerSizes an array containing the number of neurons for each
+     *            layer
+     * @param costFunc the cost function that will be use by the netowrk
+     * @param activFunc the activation function that will be use by the netowrk
+     * @param initializers the initialization scheme of each layer but the
+     *            input layer, or null to choose the default scheme for the
+     *            activation function
+     * @param seed the seed of the random initialization
+     * @throws NetworkInitializationException
+     */
+    public NeuralNetwork(int[] layerSizes, CostFunctions costFunc, ActivationFunctions activFunc,
+            WeightInitializers[] initializers, long seed) throws NetworkInitializationException {
+        this(layerSizes, costFunc, activFunc, initializers, new Random(seed));
+    }
+
+    private NeuralNetwork(int[] layerSizes, CostFunctions costFunc, ActivationFunctions activFunc,
+            WeightInitializers[] initializers, Random random)
+            throws NetworkInitializationException {
         validateLayers(layerSizes);
+        if (initializers == null) {
+            initializers = new WeightInitializers[layerSizes.length - 1];
+            Arrays.fill(initializers, WeightInitializers.forActivation(activFunc));
+        } else if (initializers.length != layerSizes.length - 1) {
+            throw new NetworkInitializationException("Number of initializers must equal the "
+                    + "number of layers");
+        }
         this.layerSizes = layerSizes;
         this.totLayer = this.layerSizes.length;
         this.costFunction = costFunc;
         this.activationFunction = activFunc;
-        randomInitialization();
+        this.random = random;
+        this.batchNormalizations = new BatchNormalization[totLayer - 1];
+        randomInitialization(initializers, random);
         LOGGER.info("Random initialization completed successfully");
     }
 
@@ -83,29 +197,154 @@ public class NeuralNetwork {
     public NeuralNetwork(int[] layerSizes, DoubleMatrix[] biases, DoubleMatrix[] weights,
             CostFunctions costFunc, ActivationFunctions activFunc)
             throws NetworkInitializationException {
+        this(layerSizes, biases, weights, costFunc, activFunc, new Random());
+    }
+
+    /**
+     * Construct a neural network, given the specifics in input. Parameters
+     * values are input explicitly; the dropout masks and the initialization
+     * of image layers are drawn from the given seed.
+     * 
+     * @param layerSizes an array containing the number of neurons for each
+     *            layer
+     * @param biases an array containing the biases' matrix of each layer
+     * @param weights an array containing the weights' matrix of each layer
+     * @param costFunc the cost function that will be use by the network
+     * @param activFunc the activation function that will be use by the network
+     * @param seed the seed of the dropout masks and image layers
+     * @throws NetworkInitializationException
+     */
+    public NeuralNetwork(int[] layerSizes, DoubleMatrix[] biases, DoubleMatrix[] weights,
+            CostFunctions costFunc, ActivationFunctions activFunc, long seed)
+            throws NetworkInitializationException {
+        this(layerSizes, biases, weights, costFunc, activFunc, new Random(seed));
+    }
+
+    private NeuralNetwork(int[] layerSizes, DoubleMatrix[] biases, DoubleMatrix[] weights,
+            CostFunctions costFunc, ActivationFunctions activFunc, Random random)
+            throws NetworkInitializationException {
         validateLayers(layerSizes);
         validateParameters(layerSizes, biases, weights);
         this.layerSizes = layerSizes;
         this.totLayer = this.layerSizes.length;
-        this.biases = biases.clone();
-        this.weights = weights.clone();
+        // parameters are updated in place, so the caller's matrixes are copied
+        this.biases = new DoubleMatrix[biases.length];
+        this.weights = new DoubleMatrix[weights.length];
+        for (int i = 0; i < biases.length; i++) {
+            this.biases[i] = biases[i].dup();
+            this.weights[i] = weights[i].dup();
+        }
         this.costFunction = costFunc;
         this.activationFunction = activFunc;
+        this.random = random;
+        this.batchNormalizations = new BatchNormalization[totLayer - 1];
         LOGGER.info("Initialization completed successfully");
     }
 
     /**
-     * Randomly initializes the parameters of the neural network using from a
-     * normal distribution.
+     * Construct a neural network from the parameters stored in a training
+     * checkpoint. The generator of the network continues from its state when
+     * the checkpoint was taken.
+     * 
+     * @param checkpoint the checkpoint to restore
+     * @throws NetworkInitializationException if the checkpoint parameters are
+     *             not valid
+     */
+    public NeuralNetwork(Checkpoint checkpoint) throws NetworkInitializationException {
+        this(checkpoint.getLayerSizes(), checkpoint.getBiases(), checkpoint.getWeights(),
+                checkpoint.getCostFunction(), checkpoint.getActivationFunction(), checkpoint
+                        .getRandom());
+        setWeightDecay(checkpoint.getWeightDecay());
+        setDropout(checkpoint.getDropoutRate());
+        if (checkpoint.getDropoutSeed() != null) {
+            this.dropoutSeed = checkpoint.getDropoutSeed();
+            this.numTrainedBatches = checkpoint.getNumTrainedBatches();
+        }
+        this.batchNormalizations = checkpoint.getBatchNormalizations();
+        this.inputNormalizer = checkpoint.getInputNormalizer();
+        this.imageLayers = checkpoint.getImageLayers();
+        this.pruningMasks = checkpoint.getPruningMasks();
+        if (pruningMasks != null) {
+            chooseSparseLayers();
+        }
+    }
+
+    /**
+     * Constructs a copy of a network. The state of the network is duplicated
+     * as it is, without validation, logging or timing of the sparse layers,
+     * so that networks can be copied often.
+     * 
+     * @param network the network to copy
+     */
+    private NeuralNetwork(NeuralNetwork network) {
+        this.layerSizes = network.layerSizes.clone();
+        this.totLayer = network.totLayer;
+        this.biases = dup(network.biases);
+        this.weights = dup(network.weights);
+        this.costFunction = network.costFunction;
+        this.activationFunction = network.activationFunction;
+        this.weightDecay = network.weightDecay;
+        this.dropoutRate = network.dropoutRate;
+        if (network.dropoutMasks != null) {
+            this.dropoutMasks = new DoubleMatrix[totLayer];
+            this.droppedActivations = new DoubleMatrix[totLayer];
+        }
+        this.dropoutSeed = network.dropoutSeed;
+        this.numTrainedBatches = network.numTrainedBatches;
+        this.batchNormalizations = new BatchNormalization[totLayer - 1];
+        for (int i = 0; i < batchNormalizations.length; i++) {
+            BatchNormalization batchNorm = network.batchNormalizations[i];
+            batchNormalizations[i] = batchNorm == null ? null : batchNorm.copy();
+        }
+        this.inputNormalizer = network.inputNormalizer == null ? null : network.inputNormalizer
+                .copy();
+        this.imageLayers = new ImageLayer[network.imageLayers.length];
+        for (int i = 0; i < imageLayers.length; i++) {
+            imageLayers[i] = network.imageLayers[i].copy();
+        }
+        this.pruningMasks = network.pruningMasks == null ? null : dup(network.pruningMasks);
+        this.sparseLayers = network.sparseLayers == null ? null : network.sparseLayers.clone();
+        this.backend = network.backend;
+        this.random = Checkpoint.copyRandom(network.random);
+    }
+
+    /**
+     * Returns an independent copy of the network, with the same parameters,
+     * regularization, normalizations, image layers, pruning masks, sparse
+     * layers and backend. Checkpointing is not copied. Copying does not log
+     * nor time the sparse layers again, so it is cheap enough to publish
+     * frequent snapshots of a network being trained.
+     * 
+     * @return the copy of the network
      */
-    private void randomInitialization() {
+    public NeuralNetwork copy() {
+        return new NeuralNetwork(this);
+    }
+
+    private static DoubleMatrix[] dup(DoubleMatrix[] matrixes) {
+        DoubleMatrix[] copies = new DoubleMatrix[matrixes.length];
+        for (int i = 0; i < matrixes.length; i++) {
+            copies[i] = matrixes[i].dup();
+        }
+        return copies;
+    }
+
+    /**
+     * Randomly initializes the parameters of the neural network, drawing each
+     * layer from the distribution of its initialization scheme.
+     * 
+     * @param initializers the initialization scheme of each layer
+     * @param random the generator to draw the parameters from
+     */
+    private void randomInitialization(WeightInitializers[] initializers, Random random) {
         biases = new DoubleMatrix[totLayer - 1];
         weights = new DoubleMatrix[totLayer - 1];
         for (int layer = 1; layer <= biases.length; layer++) {
             int layerSize = layerSizes[layer];
             int prevLayerSize = layerSizes[layer - 1];
-            biases[layer - 1] = DoubleMatrix.randn(layerSize, 1);
-            weights[layer - 1] = DoubleMatrix.randn(layerSize, prevLayerSize);
+            biases[layer - 1] = initializers[layer - 1].initializeBiases(layerSize, random);
+            weights[layer - 1] = initializers[layer - 1].initialize(layerSize, prevLayerSize,
+                    random);
             LOGGER.fine("layer " + layer + " initialization value :" + "\nbiases\n"
                     + DoubleMatrixUtils.toString(biases[layer - 1]) + "\nweights\n"
                     + DoubleMatrixUtils.toString(weights[layer - 1]));
@@ -158,6 +397,21 @@ public class NeuralNetwork {
         }
     }
 
+    public int[] getLayerSizes() {
+        return layerSizes.clone();
+    }
+
+    /**
+     * Returns the size of the raw inputs of the network: the input size of the
+     * first image layer if there are image layers, and the size of the input
+     * layer otherwise.
+     * 
+     * @return the number of features of an input
+     */
+    public int getInputSize() {
+        return imageLayers.length > 0 ? imageLayers[0].getInputSize() : layerSizes[0];
+    }
+
     public DoubleMatrix[] getWeights() {
         return weights;
     }
@@ -166,49 +420,522 @@ public class NeuralNetwork {
         return biases;
     }
 
+    public CostFunctions getCostFunction() {
+        return costFunction;
+    }
+
+    public ActivationFunctions getActivationFunction() {
+        return activationFunction;
+    }
+
     /**
-     * Initializes delta parameter matrixes, weights and biases, to zero for
-     * every layer. These are the matrixes that store the output of the
-     * backtracking algorithm.
+     * Replaces the activation function of the network, e.g. to score a network
+     * trained with {@link ActivationFunctions#SIGMOID} with the faster
+     * {@link ActivationFunctions#FAST_SIGMOID}. The outputs change by at most
+     * the error of the approximation at each layer.
      * 
-     * @return initialized weights and bias matrixes
+     * @param activationFunction the new activation function
      */
-    private ParameterDeltas initializeDeltaParameters() {
-        DoubleMatrix[] weightMatrix = new DoubleMatrix[totLayer - 1];
-        DoubleMatrix[] biasMatrix = new DoubleMatrix[totLayer - 1];
-        for (int layer = 1; layer <= biases.length; layer++) {
-            int layerSize = layerSizes[layer];
-            int prevLayerSize = layerSizes[layer - 1];
-            weightMatrix[layer - 1] = DoubleMatrix.zeros(layerSize, prevLayerSize);
-            biasMatrix[layer - 1] = DoubleMatrix.zeros(layerSize, 1);
+    public void setActivationFunction(ActivationFunctions activationFunction) {
+        this.activationFunction = activationFunction;
+        // cached outputs were computed with the old function
+        markParametersChanged();
+    }
+
+    /**
+     * Returns the batch normalization stage of a layer.
+     * 
+     * @param layer the layer, between 1 and the number of layers - 1
+     * @return the stage, or null if the layer has none
+     */
+    BatchNormalization getBatchNormalization(int layer) {
+        return batchNormalizations[layer - 1];
+    }
+
+    /**
+     * Enables periodic checkpointing during gradient descent. Every
+     * <code>interval</code> minibatches a copy of the network parameters and
+     * of the training position is handed to the writer, which stores it on a
+     * background thread.
+     * 
+     * @param writer the checkpoint writer, or null to disable checkpointing
+     * @param interval number of minibatches between two checkpoints
+     */
+    public void setCheckpointing(CheckpointWriter writer, int interval) {
+        if (writer != null && interval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
         }
-        return new ParameterDeltas(weightMatrix, biasMatrix);
+        this.checkpointWriter = writer;
+        this.checkpointInterval = interval;
+    }
+
+    public ComputeBackends getBackend() {
+        return backend;
     }
 
     /**
-     * Initializes activation matrix to zero for every layer. This matrix is
-     * used by backpropagation during the learning phase.
+     * Sets the linear algebra backend used for training and feedforward.
      * 
-     * @return initialized activation matrix
+     * @param backend the backend
      */
-    private DoubleMatrix[] initializeActivation() {
-        DoubleMatrix[] activations = new DoubleMatrix[totLayer];
-        for (int layer = 0; layer < totLayer; layer++) {
-            int layerSize = layerSizes[layer];
-            activations[layer] = DoubleMatrix.zeros(layerSize, 1);
+    public void setBackend(ComputeBackends backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Attaches a profiler to the passes of the network; only the thread
+     * running the profiler may then use the network.
+     *
+     * @param profiler the profiler, null to stop profiling
+     */
+    void setProfiler(NetworkProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    /**
+     * Sets the L2 regularization parameter. At each update the weights are
+     * shrunk by a factor (1 - learnRate * weightDecay / n), where n is the size
+     * of the training set. Biases are not regularized.
+     * 
+     * @param weightDecay the regularization parameter, zero to disable
+     *            regularization
+     */
+    public void setWeightDecay(double weightDecay) {
+        if (weightDecay < 0) {
+            throw new IllegalArgumentException("Weight decay must not be negative");
+        }
+        this.weightDecay = weightDecay;
+    }
+
+    public double getDropoutRate() {
+        return dropoutRate;
+    }
+
+    /**
+     * Sets the probability of dropping each hidden neuron during training.
+     * Dropout is inverted: kept activations are scaled by 1 / (1 - rate) while
+     * training, so that {@link #feedForward(DoubleMatrix)} uses the weights
+     * unchanged and never drops neurons.
+     * 
+     * @param dropoutRate the dropout probability, in [0, 1), zero to disable
+     *            dropout
+     */
+    public void setDropout(double dropoutRate) {
+        if (dropoutRate < 0 || dropoutRate >= 1) {
+            throw new IllegalArgumentException("Dropout rate must be in [0, 1)");
+        }
+        this.dropoutRate = dropoutRate;
+        if (dropoutRate > 0 && dropoutMasks == null) {
+            dropoutMasks = new DoubleMatrix[totLayer];
+            droppedActivations = new DoubleMatrix[totLayer];
+            dropoutSeed = random.nextLong();
+        }
+    }
+
+    /**
+     * Draws a new dropout mask for a hidden layer and applies it to the
+     * layer's activations. Both the mask and the masked activations are
+     * written to the layer's reusable buffers, which are only reallocated
+     * when the minibatch size changes.
+     * 
+     * @param layer the hidden layer
+     * @param activations the activations of the layer, one instance per
+     *            column
+     * @return the masked activations
+     */
+    private DoubleMatrix dropout(int layer, DoubleMatrix activations) {
+        if (dropoutMasks[layer] == null || dropoutMasks[layer].columns != activations.columns) {
+            dropoutMasks[layer] = new DoubleMatrix(activations.rows, activations.columns);
+            droppedActivations[layer] = new DoubleMatrix(activations.rows, activations.columns);
+        }
+        double keepRate = 1 - dropoutRate;
+        double scale = 1 / keepRate;
+        double[] mask = dropoutMasks[layer].data;
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = dropoutRandom.nextDouble() < keepRate ? scale : 0;
+        }
+        return activations.muli(dropoutMasks[layer], droppedActivations[layer]);
+    }
+
+    /**
+     * Enables or disables batch normalization for a hidden layer. While
+     * enabled, the zetas of the layer are normalized with the statistics of
+     * each minibatch during training, and with their running averages at
+     * inference time. Call {@link #freeze()} before using the trained network
+     * for inference, to remove the normalization cost.
+     * 
+     * @param layer the hidden layer, between 1 and the number of layers - 2
+     * @param enabled true to enable batch normalization
+     */
+    public void setBatchNormalization(int layer, boolean enabled) {
+        if (layer < 1 || layer > totLayer - 2) {
+            throw new IllegalArgumentException("Batch normalization is only available for hidden "
+                    + "layers");
+        }
+        if (!enabled) {
+            batchNormalizations[layer - 1] = null;
+        } else if (batchNormalizations[layer - 1] == null) {
+            batchNormalizations[layer - 1] = new BatchNormalization(layerSizes[layer]);
+        }
+        markParametersChanged();
+    }
+
+    public ImageLayer[] getImageLayers() {
+        return imageLayers.clone();
+    }
+
+    /**
+     * Sets the image layers processing the inputs before the fully connected
+     * layers. The output of each layer is the input of the next one, and the
+     * output of the last layer is the input layer of the fully connected
+     * layers. The parameters of the image layers are initialized randomly,
+     * from the generator the network was initialized from, and are trained
+     * together with the fully connected layers.
+     * 
+     * @param layers the image layers, in order; none to remove image layers
+     */
+    public void setImageLayers(ImageLayer... layers) {
+        for (int i = 0; i < layers.length; i++) {
+            int nextInputSize = i + 1 < layers.length ? layers[i + 1].getInputSize()
+                    : layerSizes[0];
+            if (layers[i].getOutputSize() != nextInputSize) {
+                throw new IllegalArgumentException("Output size of image layer " + i
+                        + " does not match the input size of the next layer");
+            }
+        }
+        for (ImageLayer layer : layers) {
+            layer.initialize(random);
+        }
+        this.imageLayers = layers.clone();
+        markParametersChanged();
+    }
+
+    public FeatureNormalizer getInputNormalizer() {
+        return inputNormalizer;
+    }
+
+    /**
+     * Sets the normalization of the inputs. The normalizer is applied to the
+     * features of the training instances and to the inputs of
+     * {@link #feedForward(DoubleMatrix)}, which are therefore expected to be
+     * raw, and is saved in the checkpoints of the network.
+     * 
+     * @param normalizer a fitted normalizer of the input features, or null to
+     *            use inputs as they are
+     */
+    public void setInputNormalizer(FeatureNormalizer normalizer) {
+        if (normalizer != null && normalizer.getNumFeatures() != getInputSize()) {
+            throw new IllegalArgumentException("Normalizer features must match the input layer");
+        }
+        this.inputNormalizer = normalizer;
+        markParametersChanged();
+    }
+
+    /**
+     * Prepares the trained network for inference. The batch normalization of
+     * each layer is folded into the layer's weights and biases, and then
+     * disabled; likewise, when there are no image layers, the input
+     * normalization is folded into the first layer.
+     * {@link #feedForward(DoubleMatrix)} computes the same output at no extra
+     * cost. Further training proceeds without batch normalization, on raw
+     * inputs.
+     */
+    public void freeze() {
+        for (int layer = 1; layer < totLayer; layer++) {
+            if (batchNormalizations[layer - 1] != null) {
+                batchNormalizations[layer - 1].fold(weights[layer - 1], biases[layer - 1]);
+                batchNormalizations[layer - 1] = null;
+            }
+        }
+        if (inputNormalizer != null && imageLayers.length == 0) {
+            inputNormalizer.fold(weights[0], biases[0]);
+            inputNormalizer = null;
+        }
+        markParametersChanged();
+        LOGGER.info("Network frozen for inference");
+    }
+
+    /**
+     * Prunes the weights whose magnitude is below a threshold. Pruned weights
+     * are set to zero and stay zero during further training, so that the
+     * network can be fine-tuned with
+     * {@link #stocasticGradientDescent(Dataset, int, double, int)}. Layers
+     * that become sparse enough for sparse products to be faster are then
+     * evaluated with sparse weights by {@link #feedForward(DoubleMatrix)}.
+     * Pruning is cumulative: weights pruned before stay pruned.
+     * 
+     * @param threshold the magnitude below which weights are pruned
+     */
+    public void prune(double threshold) {
+        DoubleMatrix[] masks = new DoubleMatrix[totLayer - 1];
+        for (int layer = 1; layer < totLayer; layer++) {
+            masks[layer - 1] = abs(weights[layer - 1]).gei(threshold);
+        }
+        applyPruning(masks);
+    }
+
+    /**
+     * Prunes, in each layer, the weights of smallest magnitude, so that the
+     * given fraction of the weights of the layer is zero. See
+     * {@link #prune(double)}.
+     * 
+     * @param sparsity the fraction of weights to prune in each layer, in [0,
+     *            1)
+     */
+    public void pruneToSparsity(double sparsity) {
+        if (sparsity < 0 || sparsity >= 1) {
+            throw new IllegalArgumentException("Sparsity must be in [0, 1)");
+        }
+        DoubleMatrix[] masks = new DoubleMatrix[totLayer - 1];
+        for (int layer = 1; layer < totLayer; layer++) {
+            DoubleMatrix magnitudes = abs(weights[layer - 1]);
+            int numPruned = (int) (sparsity * magnitudes.length);
+            double[] sorted = magnitudes.data.clone();
+            Arrays.sort(sorted);
+            double threshold = numPruned > 0 ? sorted[numPruned - 1] : -1;
+            DoubleMatrix mask = new DoubleMatrix(magnitudes.rows, magnitudes.columns);
+            int pruned = 0;
+            // ties at the threshold are pruned until the target is reached
+            for (int i = 0; i < mask.length; i++) {
+                if (magnitudes.data[i] < threshold
+                        || (magnitudes.data[i] == threshold && pruned < numPruned)) {
+                    pruned++;
+                } else {
+                    mask.data[i] = 1;
+                }
+            }
+            masks[layer - 1] = mask;
+        }
+        applyPruning(masks);
+    }
+
+    /**
+     * Removes the pruning masks: pruned weights stay zero, but can be trained
+     * again.
+     */
+    public void clearPruning() {
+        pruningMasks = null;
+        sparseLayers = null;
+        sparseWeights = null;
+    }
+
+    /**
+     * Returns the fraction of zero weights of a layer.
+     * 
+     * @param layer the layer, between 1 and the number of layers - 1
+     * @return the sparsity of the layer weights
+     */
+    public double getSparsity(int layer) {
+        DoubleMatrix layerWeights = weights[layer - 1];
+        int zeros = 0;
+        for (int i = 0; i < layerWeights.length; i++) {
+            if (layerWeights.data[i] == 0) {
+                zeros++;
+            }
+        }
+        return (double) zeros / layerWeights.length;
+    }
+
+    /**
+     * Tests if feedforward evaluates a layer with sparse weights.
+     * 
+     * @param layer the layer, between 1 and the number of layers - 1
+     * @return true if the layer uses sparse weights
+     */
+    public boolean usesSparseWeights(int layer) {
+        return sparseLayers != null && sparseLayers[layer - 1];
+    }
+
+    private static DoubleMatrix abs(DoubleMatrix matrix) {
+        DoubleMatrix result = new DoubleMatrix(matrix.rows, matrix.columns);
+        for (int i = 0; i < matrix.length; i++) {
+            result.data[i] = Math.abs(matrix.data[i]);
+        }
+        return result;
+    }
+
+    private void applyPruning(DoubleMatrix[] masks) {
+        for (int layer = 1; layer < totLayer; layer++) {
+            if (pruningMasks != null) {
+                masks[layer - 1].muli(pruningMasks[layer - 1]);
+            }
+            weights[layer - 1].muli(masks[layer - 1]);
+            LOGGER.info("Layer " + layer + " pruned to sparsity "
+                    + String.format("%.3f", getSparsity(layer)));
+        }
+        pruningMasks = masks;
+        markParametersChanged();
+        chooseSparseLayers();
+    }
+
+    /**
+     * Chooses the layers evaluated with sparse weights, by timing the sparse
+     * and the dense product of each layer that is sparse enough.
+     */
+    private void chooseSparseLayers() {
+        boolean[] sparse = new boolean[totLayer - 1];
+        for (int layer = 1; layer < totLayer; layer++) {
+            DoubleMatrix layerWeights = weights[layer - 1];
+            if (1 - getSparsity(layer) > MAX_SPARSE_DENSITY) {
+                continue;
+            }
+            SparseMatrix sparseLayerWeights = SparseMatrix.fromDense(layerWeights);
+            DoubleMatrix probe = DoubleMatrix.rand(layerWeights.columns, SPARSE_PROBE_BATCH);
+            long denseTime = Long.MAX_VALUE;
+            long sparseTime = Long.MAX_VALUE;
+            for (int run = 0; run < SPARSE_PROBE_RUNS; run++) {
+                long start = System.nanoTime();
+                backend.mmul(layerWeights, probe);
+                long middle = System.nanoTime();
+                sparseLayerWeights.mmul(probe);
+                long end = System.nanoTime();
+                denseTime = Math.min(denseTime, middle - start);
+                sparseTime = Math.min(sparseTime, end - middle);
+            }
+            sparse[layer - 1] = sparseTime < denseTime;
+            LOGGER.info("Layer " + layer + " uses " + (sparse[layer - 1] ? "sparse" : "dense")
+                    + " weights for feedforward");
+        }
+        sparseLayers = sparse;
+        sparseWeights = null;
+    }
+
+    /**
+     * Sparse copies of the weights of the sparse layers, for a version of the
+     * parameters.
+     */
+    private static class SparseWeights {
+        final long version;
+        final SparseMatrix[] weights;
+
+        SparseWeights(long version, SparseMatrix[] weights) {
+            this.version = version;
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * Returns the sparse weights of the current parameters, rebuilding them if
+     * the parameters changed.
+     */
+    private SparseMatrix[] getSparseWeights() {
+        SparseWeights current = sparseWeights;
+        long version = parameterVersion.get();
+        if (current == null || current.version != version) {
+            SparseMatrix[] layerWeights = new SparseMatrix[totLayer - 1];
+            for (int layer = 1; layer < totLayer; layer++) {
+                if (sparseLayers[layer - 1]) {
+                    layerWeights[layer - 1] = SparseMatrix.fromDense(weights[layer - 1]);
+                }
+            }
+            current = new SparseWeights(version, layerWeights);
+            sparseWeights = current;
+        }
+        return current.weights;
+    }
+
+    /**
+     * Returns the matrixes of all the trainable parameters and statistics of
+     * the network, in a fixed order.
+     */
+    private List<DoubleMatrix> parameterMatrixes() {
+        List<DoubleMatrix> matrixes = new ArrayList<DoubleMatrix>();
+        for (ImageLayer imageLayer : imageLayers) {
+            matrixes.addAll(Arrays.asList(imageLayer.parameters()));
+        }
+        for (int layer = 1; layer < totLayer; layer++) {
+            matrixes.add(weights[layer - 1]);
+            matrixes.add(biases[layer - 1]);
+            if (batchNormalizations[layer - 1] != null) {
+                matrixes.addAll(Arrays.asList(batchNormalizations[layer - 1].parameters()));
+            }
         }
-        return activations;
+        return matrixes;
     }
 
     /**
-     * Executes backpropagation for a single instance.
+     * Returns the number of values returned by {@link #getParameters()}.
      * 
-     * @param instance the instance for which to backpropagate
-     * @return parameter delta, weights and biases
-     * @throws NoLabelException if the instance doesn't have a label, i.e. is
-     *             not a trining intance
+     * @return the number of parameters
      */
-    private ParameterDeltas backPropagation(Instance instance) throws NoLabelException {
+    public int getNumParameters() {
+        int numParameters = 0;
+        for (DoubleMatrix matrix : parameterMatrixes()) {
+            numParameters += matrix.length;
+        }
+        return numParameters;
+    }
+
+    /**
+     * Copies all the parameters of the network (weights and biases of every
+     * layer, including image layers and batch normalization stages) in a
+     * single array, in a fixed order. Networks with the same architecture
+     * have compatible parameter arrays.
+     * 
+     * @return the parameters of the network
+     */
+    public double[] getParameters() {
+        double[] parameters = new double[getNumParameters()];
+        int offset = 0;
+        for (DoubleMatrix matrix : parameterMatrixes()) {
+            System.arraycopy(matrix.data, 0, parameters, offset, matrix.length);
+            offset += matrix.length;
+        }
+        return parameters;
+    }
+
+    /**
+     * Sets all the parameters of the network from an array returned by
+     * {@link #getParameters()}.
+     * 
+     * @param parameters the parameters of the network
+     */
+    public void setParameters(double[] parameters) {
+        if (parameters.length != getNumParameters()) {
+            throw new IllegalArgumentException("Expected " + getNumParameters()
+                    + " parameters");
+        }
+        int offset = 0;
+        for (DoubleMatrix matrix : parameterMatrixes()) {
+            System.arraycopy(parameters, offset, matrix.data, 0, matrix.length);
+            offset += matrix.length;
+        }
+        markParametersChanged();
+    }
+
+    /**
+     * Returns a number that changes every time the parameters of the network
+     * change, so that outputs computed with older parameters can be detected.
+     * 
+     * @return the version of the parameters
+     */
+    public long getParameterVersion() {
+        return parameterVersion.get();
+    }
+
+    /**
+     * Signals that the parameters of the network have changed. Training does
+     * it automatically; callers modifying the matrixes returned by
+     * {@link #getWeights()} or {@link #getBiases()} must call it afterwards.
+     */
+    public void markParametersChanged() {
+        parameterVersion.incrementAndGet();
+    }
+
+    /**
+     * Executes backpropagation for a minibatch of instances. Instances are
+     * processed together, one instance per column of the activation
+     * matrixes, so that batch normalization can use the minibatch statistics.
+     * 
+     * @param inputs the features of the instances, one instance per column
+     * @param labels the labels of the instances, one instance per column
+     * @return parameter delta, weights and biases, summed over the minibatch
+     */
+    private ParameterDeltas backPropagation(DoubleMatrix inputs, DoubleMatrix labels) {
         // Notation:
         // w = weights at layer
         // b = biases at layer
@@ -216,35 +943,140 @@ public class NeuralNetwork {
         // z = zeta, i.e. w * a-1 + b
         // d = delta, i.e. the derivative of the cost function w.r.t. zeta
         // -1 = previous layer
-        ParameterDeltas initializedDeltas = initializeDeltaParameters();
-        DoubleMatrix[] deltaWeights = initializedDeltas.deltaWeights;
-        DoubleMatrix[] deltaBiases = initializedDeltas.deltaBiases;
-        DoubleMatrix[] activations = initializeActivation();
+        DoubleMatrix[] deltaWeights = new DoubleMatrix[totLayer - 1];
+        DoubleMatrix[] deltaBiases = new DoubleMatrix[totLayer - 1];
+        DoubleMatrix[] activations = new DoubleMatrix[totLayer];
+        // input of the next layer, i.e. activations after dropout
+        DoubleMatrix[] layerInputs = new DoubleMatrix[totLayer - 1];
+        boolean dropout = dropoutRate > 0;
+        int batchSize = inputs.columns;
+        // the derivatives w.r.t. the output of a layer are profiled with the
+        // backward pass of the layer
+        NetworkProfiler profiler = this.profiler;
         // feed forward
-        activations[0] = instance.getFeatures();
+        for (int i = 0; i < imageLayers.length; i++) {
+            if (profiler != null) {
+                profiler.beginImageLayer(NetworkProfiler.FORWARD, i);
+                profiler.beginProduct();
+            }
+            inputs = imageLayers[i].forward(inputs, backend, true);
+            if (profiler != null) {
+                profiler.endProduct(imageLayers[i].multiplyAdds(batchSize));
+                profiler.endLayer();
+            }
+        }
+        activations[0] = inputs;
+        layerInputs[0] = activations[0];
         for (int layer = 1; layer < totLayer; layer++) {
+            DoubleMatrix w = weights[layer - 1];
+            if (profiler != null) {
+                profiler.beginDenseLayer(NetworkProfiler.FORWARD, layer);
+                profiler.beginProduct();
+            }
             // z = w * a_-1 + b
-            DoubleMatrix zetas = (weights[layer - 1].mmul(activations[layer - 1]))
-                    .add(biases[layer - 1]);
-            activations[layer] = activationFunction.activate(zetas);
+            DoubleMatrix zetas = backend.mmul(w, layerInputs[layer - 1]);
+            if (profiler != null) {
+                profiler.endProduct(w.rows, w.columns, batchSize);
+            }
+            BatchNormalization batchNorm = batchNormalizations[layer - 1];
+            if (batchNorm != null) {
+                zetas = batchNorm.forwardTraining(zetas);
+            } else {
+                backend.addiColumnVector(zetas, biases[layer - 1]);
+            }
+            if (profiler != null) {
+                profiler.beginElementwise();
+            }
+            activations[layer] = activationFunction.activate(zetas, backend);
+            if (profiler != null) {
+                profiler.endElementwise(zetas.length);
+            }
+            if (layer < totLayer - 1) {
+                layerInputs[layer] = dropout ? dropout(layer, activations[layer])
+                        : activations[layer];
+            }
+            if (profiler != null) {
+                profiler.endLayer();
+            }
         }
         // backward propagation
+        if (profiler != null) {
+            profiler.beginDenseLayer(NetworkProfiler.BACKWARD, totLayer - 1);
+            profiler.beginElementwise();
+        }
         // d = a @ (1-a) @ (-(y-a))
-        DoubleMatrix delta = costFunction.derivative(activations[totLayer - 1],
-                instance.getLabels(), activationFunction);
-        LOGGER.fine(" delta: \n" + DoubleMatrixUtils.toString(deltaBiases[totLayer - 2]));
-        // w = d * a_-1
-        deltaWeights[totLayer - 2] = delta.mmul(activations[totLayer - 2].transpose());
-        // b = d
-        deltaBiases[totLayer - 2] = delta;
-        for (int layer = totLayer - 2; layer > 0; layer--) {
-            DoubleMatrix activationDeriv = activationFunction.derivative(activations[layer]);
-            // d = a @ (1-a) @ (w_+1 * d_+1)
-            delta = (weights[layer].transpose().mmul(delta)).mul(activationDeriv);
+        DoubleMatrix delta = costFunction.derivative(activations[totLayer - 1], labels,
+                activationFunction);
+        if (profiler != null) {
+            profiler.endElementwise(delta.length);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(" delta: \n" + DoubleMatrixUtils.toString(delta));
+        }
+        for (int layer = totLayer - 1; layer > 0; layer--) {
+            DoubleMatrix w = weights[layer - 1];
+            if (layer < totLayer - 1) {
+                if (profiler != null) {
+                    profiler.beginDenseLayer(NetworkProfiler.BACKWARD, layer);
+                    profiler.beginProduct();
+                }
+                // w_+1 * d_+1
+                DoubleMatrix outputDelta = backend.mmulTransposeA(weights[layer], delta);
+                if (profiler != null) {
+                    profiler.endProduct(w.rows, weights[layer].rows, batchSize);
+                    profiler.beginElementwise();
+                }
+                // d = a @ (1-a) @ (w_+1 * d_+1)
+                delta = outputDelta.muli(activationFunction.derivative(activations[layer]));
+                if (profiler != null) {
+                    profiler.endElementwise(delta.length);
+                }
+                if (dropout) {
+                    // dropped neurons do not propagate the error
+                    delta.muli(dropoutMasks[layer]);
+                }
+                if (batchNormalizations[layer - 1] != null) {
+                    delta = batchNormalizations[layer - 1].backward(delta);
+                }
+            }
+            if (profiler != null) {
+                profiler.beginProduct();
+            }
             // w = d * a_-1
-            deltaWeights[layer - 1] = delta.mmul(activations[layer - 1].transpose());
+            deltaWeights[layer - 1] = backend.mmulTransposeB(delta, layerInputs[layer - 1]);
+            if (profiler != null) {
+                profiler.endProduct(w.rows, batchSize, w.columns);
+            }
             // b = d
-            deltaBiases[layer - 1] = delta;
+            deltaBiases[layer - 1] = delta.rowSums();
+            if (profiler != null) {
+                profiler.endLayer();
+            }
+        }
+        if (imageLayers.length > 0) {
+            // derivative of the cost w.r.t. the output of the image layers
+            if (profiler != null) {
+                profiler.beginImageLayer(NetworkProfiler.BACKWARD, imageLayers.length - 1);
+                profiler.beginProduct();
+            }
+            DoubleMatrix imageDelta = backend.mmulTransposeA(weights[0], delta);
+            if (profiler != null) {
+                profiler.endProduct(weights[0].columns, weights[0].rows, batchSize);
+            }
+            for (int i = imageLayers.length - 1; i >= 0; i--) {
+                if (profiler != null) {
+                    if (i < imageLayers.length - 1) {
+                        profiler.beginImageLayer(NetworkProfiler.BACKWARD, i);
+                    }
+                    profiler.beginProduct();
+                }
+                imageDelta = imageLayers[i].backward(imageDelta, backend, i > 0);
+                if (profiler != null) {
+                    // gradient of the parameters, then of the input
+                    profiler.endProduct(imageLayers[i].multiplyAdds(batchSize) * (i > 0 ? 2 : 1));
+                    profiler.endLayer();
+                }
+            }
         }
         ParameterDeltas parameterDeltas = new ParameterDeltas(deltaWeights, deltaBiases);
         return parameterDeltas;
@@ -252,29 +1084,113 @@ public class NeuralNetwork {
 
     /**
      * Performs backpropagation for the instances in the input dataset, and
-     * updates the weights and biases according to the increment matrixes
-     * returned by the backpropagation.
+     * updates the weights and biases in place according to the increment
+     * matrixes returned by the backpropagation. When L2 regularization is on,
+     * weights are also shrunk.
      * 
      * @param trainingBatch the set of instances to be backpropagated
      * @param learnRate the learning rate for the increments
-     * @param batchSize size of the set of instances
+     * @param trainingSetSize size of the training set
      */
-    private void updateParameters(Dataset trainingBatch, double learnRate, int batchSize) {
+    private void updateParameters(Dataset trainingBatch, double learnRate, int trainingSetSize) {
+        List<Instance> labelled = new ArrayList<Instance>(trainingBatch.size());
         for (Instance instance : trainingBatch) {
-            try {
-                ParameterDeltas parameterDeltas = backPropagation(instance);
-                DoubleMatrix[] deltaBiases = parameterDeltas.deltaBiases;
-                DoubleMatrix[] deltaWeights = parameterDeltas.deltaWeights;
-                for (int layer = 1; layer < totLayer; layer++) {
-                    biases[layer - 1] = biases[layer - 1].sub((deltaBiases[layer - 1]).mul(
-                            learnRate).div(batchSize));
-                    weights[layer - 1] = weights[layer - 1].sub((deltaWeights[layer - 1]).mul(
-                            learnRate).div(batchSize));
-                }
-            } catch (NoLabelException nle) {
+            if (instance.isLabelled()) {
+                labelled.add(instance);
+            } else {
                 LOGGER.severe("Found instance without label. Learning may be unstable");
             }
         }
+        if (labelled.isEmpty()) {
+            return;
+        }
+        DoubleMatrix inputs = stackFeatures(labelled);
+        if (inputNormalizer != null) {
+            inputNormalizer.transform(inputs);
+        }
+        if (dropoutRate > 0) {
+            dropoutRandom = new SplittableRandom(RandomUtils.mix(dropoutSeed + numTrainedBatches));
+        }
+        numTrainedBatches++;
+        ParameterDeltas parameterDeltas;
+        try {
+            parameterDeltas = backPropagation(inputs, stackLabels(labelled));
+        } catch (NoLabelException nle) {
+            // cannot happen, unlabelled instances have been skipped
+            throw new IllegalStateException(nle);
+        }
+        DoubleMatrix[] deltaBiases = parameterDeltas.deltaBiases;
+        DoubleMatrix[] deltaWeights = parameterDeltas.deltaWeights;
+        double step = learnRate / labelled.size();
+        double decay = 1 - learnRate * weightDecay / trainingSetSize;
+        for (int layer = 1; layer < totLayer; layer++) {
+            if (weightDecay > 0) {
+                weights[layer - 1].muli(decay);
+            }
+            backend.axpy(-step, deltaBiases[layer - 1], biases[layer - 1]);
+            backend.axpy(-step, deltaWeights[layer - 1], weights[layer - 1]);
+            if (pruningMasks != null) {
+                // pruned weights stay zero
+                weights[layer - 1].muli(pruningMasks[layer - 1]);
+            }
+            if (batchNormalizations[layer - 1] != null) {
+                batchNormalizations[layer - 1].update(step, backend);
+            }
+        }
+        for (ImageLayer imageLayer : imageLayers) {
+            imageLayer.update(step, weightDecay > 0 ? decay : 1, backend);
+        }
+        markParametersChanged();
+    }
+
+    /**
+     * Copies the features of a list of instances in a single matrix, one
+     * instance per column.
+     * 
+     * @param instances the instances
+     * @return the features matrix
+     */
+    private static DoubleMatrix stackFeatures(List<Instance> instances) {
+        int rows = instances.get(0).getFeatures().length;
+        DoubleMatrix stacked = new DoubleMatrix(rows, instances.size());
+        for (int i = 0; i < instances.size(); i++) {
+            System.arraycopy(instances.get(i).getFeatures().data, 0, stacked.data, i * rows, rows);
+        }
+        return stacked;
+    }
+
+    /**
+     * Copies the labels of a list of instances in a single matrix, one
+     * instance per column.
+     * 
+     * @param instances the labelled instances
+     * @return the labels matrix
+     * @throws NoLabelException if an instance is not labelled
+     */
+    private static DoubleMatrix stackLabels(List<Instance> instances) throws NoLabelException {
+        int rows = instances.get(0).getLabels().length;
+        DoubleMatrix stacked = new DoubleMatrix(rows, instances.size());
+        for (int i = 0; i < instances.size(); i++) {
+            System.arraycopy(instances.get(i).getLabels().data, 0, stacked.data, i * rows, rows);
+        }
+        return stacked;
+    }
+
+    /**
+     * Performs a single gradient descent update with a minibatch, for callers
+     * that drive the training loop themselves.
+     * 
+     * @param miniBatch the instances of the minibatch; unlabelled instances
+     *            are skipped
+     * @param learnRate the learning rate for the update
+     * @param trainingSetSize size of the training set the minibatch is drawn
+     *            from, which scales the L2 regularization
+     */
+    public void trainMiniBatch(Dataset miniBatch, double learnRate, int trainingSetSize) {
+        if (learnRate <= 0 || trainingSetSize < 1) {
+            throw new IllegalArgumentException("Invalid gradient descent parameters");
+        }
+        updateParameters(miniBatch, learnRate, trainingSetSize);
     }
 
     /**
@@ -287,41 +1203,156 @@ public class NeuralNetwork {
      */
     public void stocasticGradientDescent(Dataset trainingSet, int numEpochs, double learnRate,
             int miniBatchSize) throws NetworkInitializationException {
+        stocasticGradientDescent(trainingSet, numEpochs, learnRate, miniBatchSize, null);
+    }
+
+    /**
+     * Performs gradient descent learning on a given dataset, resuming from a
+     * checkpoint of an interrupted run. The network must have been constructed
+     * from the same checkpoint, and the training set must contain the same
+     * instances in the same order as when the interrupted run started: the
+     * shuffles of the completed epochs are replayed to restore the order in
+     * which instances are visited.
+     * 
+     * @param trainingSet the training set used for learning
+     * @param numEpochs the number of epochs of the training
+     * @param learnRate the learning rate for parameter updates
+     * @param miniBatchSize minibatch size for parameter update
+     * @param resumeFrom the checkpoint to resume from, or null to start a new
+     *            run
+     */
+    public void stocasticGradientDescent(Dataset trainingSet, int numEpochs, double learnRate,
+            int miniBatchSize, Checkpoint resumeFrom) throws NetworkInitializationException {
         if (trainingSet.size() < 1 || numEpochs < 1 || learnRate <= 0 || miniBatchSize < 1) {
             throw new NetworkInitializationException("Invalid gradient descent parameters.");
         }
+        int startEpoch = 0;
+        int startBatch = 0;
+        Random initialShuffleRandom = null;
+        if (resumeFrom != null) {
+            if (resumeFrom.getMiniBatchSize() != miniBatchSize) {
+                throw new NetworkInitializationException("Minibatch size does not match the "
+                        + "checkpoint minibatch size " + resumeFrom.getMiniBatchSize());
+            }
+            initialShuffleRandom = resumeFrom.getInitialShuffleRandom();
+            trainingSet.setRandom(resumeFrom.getInitialShuffleRandom());
+            startEpoch = resumeFrom.getEpoch();
+            startBatch = resumeFrom.getBatch();
+            for (int epoch = 0; epoch < startEpoch; epoch++) {
+                trainingSet.shuffle();
+            }
+            LOGGER.info("Resuming gradient descent from " + resumeFrom);
+        } else if (checkpointWriter != null) {
+            initialShuffleRandom = Checkpoint.copyRandom(trainingSet.getRandom());
+        }
         LOGGER.info("Gradient descent training started");
         Dataset trainingBatch;
-        int numBatches = trainingSet.size() / miniBatchSize;
-        int currIndex;
-        for (int epoch = 0; epoch < numEpochs; epoch++) {
+        // the last minibatch also takes the instances left over by the others
+        int numBatches = Math.max(trainingSet.size() / miniBatchSize, 1);
+        int batchesSinceCheckpoint = 0;
+        for (int epoch = startEpoch; epoch < numEpochs; epoch++) {
             trainingSet.shuffle();
-            currIndex = 0;
             LOGGER.info("Gradient descent epoch : " + epoch + " (of " + numEpochs + ")");
-            for (int j = 0; j < numBatches - 1; j++) {
-                trainingBatch = trainingSet.getSubSet(currIndex, currIndex + miniBatchSize);
+            for (int j = epoch == startEpoch ? startBatch : 0; j < numBatches; j++) {
+                int startIdx = j * miniBatchSize;
+                int endIdx = j == numBatches - 1 ? trainingSet.size() : startIdx + miniBatchSize;
+                trainingBatch = trainingSet.getSubSet(startIdx, endIdx);
                 LOGGER.fine("  Minibatch: " + j);
-                updateParameters(trainingBatch, learnRate, trainingBatch.size());
-                currIndex = currIndex + miniBatchSize;
+                updateParameters(trainingBatch, learnRate, trainingSet.size());
+                batchesSinceCheckpoint++;
+                if (checkpointWriter != null && batchesSinceCheckpoint >= checkpointInterval) {
+                    boolean lastBatch = j == numBatches - 1;
+                    checkpointWriter.submit(new Checkpoint(layerSizes, biases, weights,
+                            costFunction, activationFunction, numEpochs, learnRate,
+                            miniBatchSize, weightDecay, dropoutRate, batchNormalizations,
+                            inputNormalizer, imageLayers, pruningMasks,
+                            lastBatch ? epoch + 1 : epoch,
+                            lastBatch ? 0 : j + 1, initialShuffleRandom, random, dropoutSeed,
+                            numTrainedBatches));
+                    batchesSinceCheckpoint = 0;
+                }
             }
-            trainingBatch = trainingSet.getSubSet(currIndex, trainingSet.size());
-            LOGGER.fine("  Minibatch: " + numBatches);
-            updateParameters(trainingBatch, learnRate, trainingBatch.size());
         }
         LOGGER.info("Gradient descent training completed");
     }
 
     /**
-     * Performs feedforward on a given user input.
+     * Performs feedforward on a given user input. Several inputs can be
+     * evaluated at once, one input per column.
      * 
-     * @param input input layer for which to evaluate the output
-     * @return neural network output
+     * @param input input layer for which to evaluate the output, not
+     *            normalized
+     * @return neural network output, one output per column
      */
     public DoubleMatrix feedForward(DoubleMatrix input) {
         DoubleMatrix layerOutput = input;
-        for (int layer = 1; layer <= biases.length; layer++) {
-            DoubleMatrix zetas = (weights[layer - 1].mmul(layerOutput)).add(biases[layer - 1]);
-            layerOutput = activationFunction.activate(zetas);
+        if (inputNormalizer != null) {
+            layerOutput = inputNormalizer.transform(input.dup());
+        }
+        int batchSize = input.columns;
+        NetworkProfiler profiler = this.profiler;
+        for (int i = 0; i < imageLayers.length; i++) {
+            if (profiler != null) {
+                profiler.beginImageLayer(NetworkProfiler.INFERENCE, i);
+                profiler.beginProduct();
+            }
+            layerOutput = imageLayers[i].forward(layerOutput, backend, false);
+            if (profiler != null) {
+                profiler.endProduct(imageLayers[i].multiplyAdds(batchSize));
+                profiler.endLayer();
+            }
+        }
+        return feedForward(layerOutput, 1);
+    }
+
+    /**
+     * Feeds the activations of a layer forward through the following fully
+     * connected layers, with the sparse weights of the sparse layers.
+     * 
+     * @param activations the activations of the layer before the first layer
+     *            to evaluate, one instance per column
+     * @param firstLayer the first fully connected layer to evaluate, from 1
+     * @return neural network output, one output per column
+     */
+    DoubleMatrix feedForward(DoubleMatrix activations, int firstLayer) {
+        DoubleMatrix layerOutput = activations;
+        int batchSize = activations.columns;
+        NetworkProfiler profiler = this.profiler;
+        boolean[] sparse = sparseLayers;
+        SparseMatrix[] layerSparseWeights = sparse != null ? getSparseWeights() : null;
+        for (int layer = firstLayer; layer <= biases.length; layer++) {
+            DoubleMatrix w = weights[layer - 1];
+            if (profiler != null) {
+                profiler.beginDenseLayer(NetworkProfiler.INFERENCE, layer);
+                profiler.beginProduct();
+            }
+            DoubleMatrix zetas;
+            if (sparse != null && sparse[layer - 1]) {
+                zetas = layerSparseWeights[layer - 1].mmul(layerOutput);
+                if (profiler != null) {
+                    profiler.endProduct((long) layerSparseWeights[layer - 1].getNonZeros()
+                            * batchSize);
+                }
+            } else {
+                zetas = backend.mmul(w, layerOutput);
+                if (profiler != null) {
+                    profiler.endProduct(w.rows, w.columns, batchSize);
+                }
+            }
+            BatchNormalization batchNorm = batchNormalizations[layer - 1];
+            if (batchNorm != null) {
+                zetas = batchNorm.forwardInference(zetas);
+            } else {
+                backend.addiColumnVector(zetas, biases[layer - 1]);
+            }
+            if (profiler != null) {
+                profiler.beginElementwise();
+            }
+            layerOutput = activationFunction.activate(zetas, backend);
+            if (profiler != null) {
+                profiler.endElementwise(zetas.length);
+                profiler.endLayer();
+            }
         }
         return layerOutput;
     }
@@ -0,0 +1,205 @@
+package com.penna.neural.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Trains a network incrementally from an unbounded stream of instances, with
+ * minibatch gradient descent. Instances are grouped into minibatches as they
+ * arrive, and every minibatch updates the network immediately. Unlabelled
+ * instances are skipped.
+ *
+ * Training runs on the thread calling one of the <code>partialFit</code>
+ * methods, which must not be called concurrently. Other threads must not use
+ * the trained network; they score with {@link #getSnapshot()}, a copy of the
+ * network published every given number of minibatches.
+ *
+ * Since the size of the training set is unknown, the L2 regularization of
+ * the network is scaled by a nominal training set size, fixed for the whole
+ * stream, so that every minibatch shrinks the weights by the same factor.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class OnlineTrainer {
+
+    private static final Logger LOGGER = Logger.getLogger(OnlineTrainer.class.getName());
+    // how often a trainer waiting for a queue checks if it has been stopped
+    private static final long STOP_CHECK_MILLIS = 100;
+
+    private final NeuralNetwork network;
+    private final double learnRate;
+    private final int miniBatchSize;
+    private final int trainingSetSize;
+    private final int snapshotInterval;
+    private final List<Instance> pending;
+    private long numInstances;
+    private long numBatches;
+    private long numSkipped;
+    private volatile NeuralNetwork snapshot;
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a trainer, and publishes a first snapshot of the network.
+     *
+     * @param network the network to train
+     * @param learnRate the learning rate for parameter updates
+     * @param miniBatchSize minibatch size for parameter update
+     * @param trainingSetSize nominal size of the training set, which scales
+     *            the L2 regularization as in batch training, e.g. the number
+     *            of instances expected in the time the stream is relevant
+     * @param snapshotInterval number of minibatches between two snapshots
+     */
+    public OnlineTrainer(NeuralNetwork network, double learnRate, int miniBatchSize,
+            int trainingSetSize, int snapshotInterval) {
+        if (learnRate <= 0 || miniBatchSize < 1 || trainingSetSize < 1 || snapshotInterval < 1) {
+            throw new IllegalArgumentException("Invalid online training parameters");
+        }
+        this.network = network;
+        this.learnRate = learnRate;
+        this.miniBatchSize = miniBatchSize;
+        this.trainingSetSize = trainingSetSize;
+        this.snapshotInterval = snapshotInterval;
+        this.pending = new ArrayList<Instance>(miniBatchSize);
+        this.snapshot = network.copy();
+    }
+
+    /**
+     * Returns the last published copy of the network. The copy is never
+     * modified by the trainer, so it can be used by any thread.
+     *
+     * @return the snapshot of the network
+     */
+    public NeuralNetwork getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the number of labelled instances trained on.
+     *
+     * @return the number of instances
+     */
+    public long getNumInstances() {
+        return numInstances;
+    }
+
+    public long getNumBatches() {
+        return numBatches;
+    }
+
+    /**
+     * Trains the network with all the instances of an iterator. Instances
+     * that do not fill a last minibatch are kept for the next call, see
+     * {@link #flush()}.
+     *
+     * @param instances the instances, possibly unbounded
+     */
+    public void partialFit(Iterator<Instance> instances) {
+        while (instances.hasNext()) {
+            add(instances.next());
+        }
+    }
+
+    /**
+     * Trains the network with the instances of a queue until
+     * {@link #stop()} is called. A minibatch is trained when it is full, or
+     * when its first instance has waited the given time for the others, so
+     * that a slow stream still updates the network. Instances of the queue
+     * are waited for indefinitely.
+     *
+     * @param queue the queue of the instances
+     * @param maxWaitMicros the maximum time, in microseconds, the first
+     *            instance of a minibatch waits for the minibatch to be full
+     * @throws InterruptedException if interrupted while waiting for instances
+     */
+    public void partialFit(BlockingQueue<Instance> queue, long maxWaitMicros)
+            throws InterruptedException {
+        long maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        while (!stopped) {
+            if (pending.isEmpty()) {
+                Instance first = queue.poll(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                add(first);
+            }
+            long deadline = System.nanoTime() + maxWaitNanos;
+            while (!pending.isEmpty() && pending.size() < miniBatchSize) {
+                // take what is already waiting without blocking
+                if (queue.drainTo(pending, miniBatchSize - pending.size()) > 0) {
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                Instance next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                        : null;
+                if (next == null) {
+                    break;
+                }
+                pending.add(next);
+            }
+            flush();
+        }
+        LOGGER.info("Online training stopped after " + numInstances + " instances, "
+                + numBatches + " minibatches");
+    }
+
+    /**
+     * Trains the network with a single instance. The network is updated when
+     * a minibatch is full.
+     *
+     * @param instance the instance
+     */
+    public void add(Instance instance) {
+        pending.add(instance);
+        if (pending.size() >= miniBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Trains the network with the instances of the incomplete minibatch, if
+     * any.
+     */
+    public void flush() {
+        List<Instance> batch = new ArrayList<Instance>(pending.size());
+        for (Instance instance : pending) {
+            if (instance.isLabelled()) {
+                batch.add(instance);
+            } else {
+                numSkipped++;
+            }
+        }
+        pending.clear();
+        if (batch.isEmpty()) {
+            return;
+        }
+        numInstances += batch.size();
+        network.trainMiniBatch(new Dataset(batch), learnRate, trainingSetSize);
+        numBatches++;
+        if (numBatches % snapshotInterval == 0) {
+            publishSnapshot();
+        }
+    }
+
+    /**
+     * Publishes a copy of the network as it is now.
+     */
+    public void publishSnapshot() {
+        snapshot = network.copy();
+        LOGGER.fine("Published snapshot after " + numInstances + " instances, " + numSkipped
+                + " unlabelled instances skipped");
+    }
+
+    /**
+     * Makes {@link #partialFit(BlockingQueue, long)} return after the current
+     * minibatch, and return immediately if called afterwards. Can be called
+     * from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+}
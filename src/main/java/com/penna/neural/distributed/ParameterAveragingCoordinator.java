@@ -0,0 +1,251 @@
+package com.penna.neural.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import com.penna.neural.core.NeuralNetwork;
+
+/**
+ * Coordinator of a data parallel training run by parameter averaging. Each
+ * worker process trains a copy of the network on its own shard of the
+ * training set, see {@link ParameterAveragingWorker}, and periodically sends
+ * the coordinator the change of its parameters since the last
+ * synchronization. Once all the workers have sent their delta, the
+ * coordinator averages them, weighted by the number of instances each worker
+ * trained on, and sends back the new parameters to every worker.
+ *
+ * Workers connect over TCP, so they can run on other hosts as long as the
+ * coordinator listens on a reachable address. The coordinator holds the
+ * reference copy of the parameters in its network, which is up to date after
+ * every round.
+ *
+ * A worker that does not connect in time, or that sends nothing for a whole
+ * round, fails the training, so that a crashed or stuck worker does not block
+ * the coordinator forever; see {@link #setTimeouts(int, int)}.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class ParameterAveragingCoordinator {
+
+    private static final Logger LOGGER = Logger.getLogger(ParameterAveragingCoordinator.class
+            .getName());
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int DEFAULT_ROUND_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final NeuralNetwork network;
+    private final int numWorkers;
+    private final ServerSocket serverSocket;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int roundTimeoutMillis = DEFAULT_ROUND_TIMEOUT_MILLIS;
+
+    /**
+     * Constructs a coordinator listening on the loopback interface, for
+     * workers running on the same host.
+     *
+     * @param network the network holding the initial parameters
+     * @param port the port to listen on, 0 for any free port
+     * @param numWorkers the number of workers taking part in the training
+     * @throws IOException if the coordinator cannot listen on the port
+     */
+    public ParameterAveragingCoordinator(NeuralNetwork network, int port, int numWorkers)
+            throws IOException {
+        this(network, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), numWorkers);
+    }
+
+    /**
+     * Constructs a coordinator listening on the given address.
+     *
+     * @param network the network holding the initial parameters
+     * @param address the address to listen on
+     * @param numWorkers the number of workers taking part in the training
+     * @throws IOException if the coordinator cannot listen on the address
+     */
+    public ParameterAveragingCoordinator(NeuralNetwork network, InetSocketAddress address,
+            int numWorkers) throws IOException {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        this.network = network;
+        this.numWorkers = numWorkers;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address, numWorkers);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets how long the coordinator waits for the workers. By default all the
+     * workers must connect within a minute, and each round must complete
+     * within ten minutes.
+     *
+     * @param connectTimeoutMillis the time, in milliseconds, within which all
+     *            the workers must connect after {@link #run()} is called, zero
+     *            to wait forever
+     * @param roundTimeoutMillis the time, in milliseconds, a worker may take
+     *            to send its delta or its completion message, zero to wait
+     *            forever
+     */
+    public void setTimeouts(int connectTimeoutMillis, int roundTimeoutMillis) {
+        if (connectTimeoutMillis < 0 || roundTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.roundTimeoutMillis = roundTimeoutMillis;
+    }
+
+    /**
+     * Waits for all the workers to connect and coordinates the training until
+     * every worker is done. The parameters of the network are then the final
+     * averaged parameters.
+     *
+     * @throws IOException if a worker does not follow the protocol, does not
+     *             connect or answer in time, or its connection fails
+     */
+    public void run() throws IOException {
+        List<Connection> connections = new ArrayList<Connection>();
+        try {
+            double[] parameters = network.getParameters();
+            long connectDeadline = System.nanoTime() + connectTimeoutMillis * 1000000L;
+            for (int i = 0; i < numWorkers; i++) {
+                Connection connection = new Connection(accept(i, connectDeadline), i);
+                connections.add(connection);
+                try {
+                    connection.handshake(i, numWorkers, parameters);
+                } catch (SocketTimeoutException ste) {
+                    throw new IOException("Worker " + i + " sent no handshake for "
+                            + roundTimeoutMillis + " ms", ste);
+                }
+                LOGGER.info("Worker " + i + " connected from "
+                        + connection.socket.getRemoteSocketAddress());
+            }
+            serverSocket.close();
+            List<Connection> active = new ArrayList<Connection>(connections);
+            int round = 0;
+            while (!active.isEmpty()) {
+                double[] sum = new double[parameters.length];
+                long totalInstances = 0;
+                // each active worker sends exactly one message per round
+                for (Iterator<Connection> it = active.iterator(); it.hasNext();) {
+                    Connection connection = it.next();
+                    int message;
+                    try {
+                        message = connection.in.readInt();
+                    } catch (SocketTimeoutException ste) {
+                        throw new IOException("Worker " + connection.workerIndex + " sent "
+                                + "nothing for " + roundTimeoutMillis + " ms in round "
+                                + (round + 1), ste);
+                    } catch (EOFException eofe) {
+                        throw new IOException("Worker " + connection.workerIndex + " closed "
+                                + "its connection in round " + (round + 1), eofe);
+                    }
+                    if (message == ParameterCodec.MESSAGE_DONE) {
+                        it.remove();
+                        continue;
+                    } else if (message != ParameterCodec.MESSAGE_DELTA) {
+                        throw new IOException("Unknown message " + message);
+                    }
+                    long numInstances = connection.in.readLong();
+                    double[] delta = ParameterCodec.readVector(connection.in, parameters.length);
+                    for (int j = 0; j < sum.length; j++) {
+                        sum[j] += numInstances * delta[j];
+                    }
+                    totalInstances += numInstances;
+                }
+                if (active.isEmpty()) {
+                    break;
+                }
+                if (totalInstances > 0) {
+                    for (int j = 0; j < parameters.length; j++) {
+                        parameters[j] += sum[j] / totalInstances;
+                    }
+                }
+                network.setParameters(parameters);
+                for (Connection connection : active) {
+                    ParameterCodec.writeVector(connection.out, parameters);
+                    connection.out.flush();
+                }
+                round++;
+                LOGGER.fine("Round " + round + " averaged " + totalInstances + " instances from "
+                        + active.size() + " workers");
+            }
+            LOGGER.info("Parameter averaging completed after " + round + " rounds");
+        } finally {
+            serverSocket.close();
+            for (Connection connection : connections) {
+                connection.socket.close();
+            }
+        }
+    }
+
+    /**
+     * Accepts the connection of a worker before the deadline of the
+     * connections.
+     */
+    private Socket accept(int workerIndex, long deadline) throws IOException {
+        if (connectTimeoutMillis > 0) {
+            long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+            serverSocket.setSoTimeout((int) Math.max(1, remainingMillis));
+        }
+        try {
+            Socket socket = serverSocket.accept();
+            socket.setSoTimeout(roundTimeoutMillis);
+            return socket;
+        } catch (SocketTimeoutException ste) {
+            throw new IOException("Only " + workerIndex + " of " + numWorkers + " workers "
+                    + "connected within " + connectTimeoutMillis + " ms", ste);
+        }
+    }
+
+    /**
+     * Connection to a worker.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final int workerIndex;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(Socket socket, int workerIndex) throws IOException {
+            this.socket = socket;
+            this.workerIndex = workerIndex;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                    ParameterCodec.BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                    ParameterCodec.BUFFER_SIZE));
+        }
+
+        void handshake(int workerIndex, int numWorkers, double[] parameters) throws IOException {
+            if (in.readInt() != ParameterCodec.MAGIC || in.readInt() != ParameterCodec.VERSION) {
+                throw new IOException("Worker " + workerIndex + " speaks another protocol");
+            }
+            int numParameters = in.readInt();
+            if (numParameters != parameters.length) {
+                out.writeInt(ParameterCodec.STATUS_REJECTED);
+                out.flush();
+                throw new IOException("Worker " + workerIndex + " network has "
+                        + numParameters + " parameters instead of " + parameters.length);
+            }
+            out.writeInt(ParameterCodec.STATUS_ACCEPTED);
+            out.writeInt(workerIndex);
+            out.writeInt(numWorkers);
+            ParameterCodec.writeVector(out, parameters);
+            out.flush();
+        }
+    }
+}
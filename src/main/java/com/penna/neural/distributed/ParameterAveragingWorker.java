@@ -0,0 +1,188 @@
+package com.penna.neural.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import com.penna.neural.core.Dataset;
+import com.penna.neural.core.Instance;
+import com.penna.neural.core.NeuralNetwork;
+
+/**
+ * Worker of a data parallel training run by parameter averaging, see
+ * {@link ParameterAveragingCoordinator}. The worker trains its network on a
+ * shard of the training set with minibatch gradient descent and, every given
+ * number of minibatches, sends the change of its parameters to the
+ * coordinator and continues from the averaged parameters it receives back.
+ *
+ * The network of the worker must have the same architecture as the network
+ * of the coordinator, whose parameters it receives when it connects.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class ParameterAveragingWorker implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ParameterAveragingWorker.class
+            .getName());
+
+    private final NeuralNetwork network;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int workerIndex;
+    private final int numWorkers;
+    // parameters received from the coordinator at the last synchronization
+    private double[] parameters;
+
+    /**
+     * Connects to a coordinator and initializes the parameters of the network
+     * with the parameters of the coordinator.
+     *
+     * @param network the network to train
+     * @param host the host of the coordinator
+     * @param port the port of the coordinator
+     * @throws IOException if the connection fails or the coordinator rejects
+     *             the network
+     */
+    public ParameterAveragingWorker(NeuralNetwork network, String host, int port)
+            throws IOException {
+        this.network = network;
+        this.socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                    ParameterCodec.BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                    ParameterCodec.BUFFER_SIZE));
+            int numParameters = network.getNumParameters();
+            out.writeInt(ParameterCodec.MAGIC);
+            out.writeInt(ParameterCodec.VERSION);
+            out.writeInt(numParameters);
+            out.flush();
+            if (in.readInt() != ParameterCodec.STATUS_ACCEPTED) {
+                throw new IOException("The coordinator rejected the network: the architectures "
+                        + "do not match");
+            }
+            this.workerIndex = in.readInt();
+            this.numWorkers = in.readInt();
+            this.parameters = ParameterCodec.readVector(in, numParameters);
+        } catch (IOException ioe) {
+            socket.close();
+            throw ioe;
+        }
+        network.setParameters(parameters);
+        LOGGER.info("Connected to coordinator as worker " + workerIndex + " of " + numWorkers);
+    }
+
+    /**
+     * Returns the index of this worker, from 0 to the number of workers - 1,
+     * which can be used to pick the shard of the training set.
+     *
+     * @return the index of the worker
+     */
+    public int getWorkerIndex() {
+        return workerIndex;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Returns the shard of a dataset assigned to a worker: the instances whose
+     * index modulo the number of workers is the index of the worker. Shards
+     * of all the workers are disjoint and cover the dataset.
+     *
+     * @param dataset the whole dataset
+     * @param workerIndex the index of the worker
+     * @param numWorkers the number of workers
+     * @return the shard of the worker
+     */
+    public static Dataset getShard(Dataset dataset, int workerIndex, int numWorkers) {
+        List<Instance> instances = new ArrayList<Instance>(dataset.size() / numWorkers + 1);
+        for (int i = workerIndex; i < dataset.size(); i += numWorkers) {
+            instances.add(dataset.getInstance(i));
+        }
+        Dataset shard = new Dataset(instances);
+        shard.setRandom(dataset.getRandom());
+        return shard;
+    }
+
+    /**
+     * Trains the network on a shard of the training set, synchronizing with
+     * the coordinator every given number of minibatches and at the end of
+     * training. The network then has the last averaged parameters.
+     *
+     * @param shard the shard of the training set of this worker
+     * @param numEpochs the number of epochs of the training
+     * @param learnRate the learning rate for parameter updates
+     * @param miniBatchSize minibatch size for parameter update
+     * @param batchesPerRound number of minibatches between two
+     *            synchronizations
+     * @throws IOException if the communication with the coordinator fails
+     */
+    public void train(Dataset shard, int numEpochs, double learnRate, int miniBatchSize,
+            int batchesPerRound) throws IOException {
+        if (shard.size() < 1 || numEpochs < 1 || learnRate <= 0 || miniBatchSize < 1
+                || batchesPerRound < 1) {
+            throw new IllegalArgumentException("Invalid gradient descent parameters");
+        }
+        // the last minibatch also takes the instances left over by the others
+        int numBatches = Math.max(shard.size() / miniBatchSize, 1);
+        int batchesSinceRound = 0;
+        long instancesSinceRound = 0;
+        for (int epoch = 0; epoch < numEpochs; epoch++) {
+            shard.shuffle();
+            LOGGER.info("Worker " + workerIndex + " epoch : " + epoch + " (of " + numEpochs
+                    + ")");
+            for (int j = 0; j < numBatches; j++) {
+                int startIdx = j * miniBatchSize;
+                int endIdx = j == numBatches - 1 ? shard.size() : startIdx + miniBatchSize;
+                // weight decay is scaled as if the whole training set was local
+                network.trainMiniBatch(shard.getSubSet(startIdx, endIdx), learnRate,
+                        shard.size() * numWorkers);
+                batchesSinceRound++;
+                instancesSinceRound += endIdx - startIdx;
+                if (batchesSinceRound == batchesPerRound) {
+                    synchronize(instancesSinceRound);
+                    batchesSinceRound = 0;
+                    instancesSinceRound = 0;
+                }
+            }
+        }
+        if (batchesSinceRound > 0) {
+            synchronize(instancesSinceRound);
+        }
+        out.writeInt(ParameterCodec.MESSAGE_DONE);
+        out.flush();
+    }
+
+    /**
+     * Sends the change of the parameters since the last synchronization and
+     * sets the averaged parameters sent back by the coordinator.
+     */
+    private void synchronize(long numInstances) throws IOException {
+        double[] delta = network.getParameters();
+        for (int i = 0; i < delta.length; i++) {
+            delta[i] -= parameters[i];
+        }
+        out.writeInt(ParameterCodec.MESSAGE_DELTA);
+        out.writeLong(numInstances);
+        ParameterCodec.writeVector(out, delta);
+        out.flush();
+        parameters = ParameterCodec.readVector(in, parameters.length);
+        network.setParameters(parameters);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
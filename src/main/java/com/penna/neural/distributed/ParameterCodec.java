@@ -0,0 +1,87 @@
+package com.penna.neural.distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * Wire format of the parameter averaging protocol. All values are big-endian.
+ * <ul>
+ * <li>handshake, worker to coordinator: magic, protocol version, number of
+ * parameters of the worker network;</li>
+ * <li>handshake, coordinator to worker: status, worker index, number of
+ * workers, initial parameters;</li>
+ * <li>each round, worker to coordinator: message type, then for a delta the
+ * number of instances it was trained on and the parameter delta;</li>
+ * <li>each round, coordinator to worker: the averaged parameters.</li>
+ * </ul>
+ * A vector is its length followed by its values as raw doubles.
+ *
+ * @author mpennacchiotti
+ *
+ */
+final class ParameterCodec {
+
+    static final int MAGIC = 0x4e4e5041;
+    static final int VERSION = 1;
+
+    static final int STATUS_ACCEPTED = 0;
+    static final int STATUS_REJECTED = 1;
+
+    static final int MESSAGE_DELTA = 1;
+    static final int MESSAGE_DONE = 2;
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private ParameterCodec() {
+    }
+
+    /**
+     * Writes a vector of doubles, in blocks through a byte buffer rather than
+     * one double at a time.
+     *
+     * @param out the destination stream
+     * @param vector the vector to write
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeVector(DataOutputStream out, double[] vector) throws IOException {
+        out.writeInt(vector.length);
+        byte[] bytes = new byte[BUFFER_SIZE];
+        DoubleBuffer doubles = ByteBuffer.wrap(bytes).asDoubleBuffer();
+        for (int start = 0; start < vector.length; start += doubles.capacity()) {
+            int count = Math.min(doubles.capacity(), vector.length - start);
+            doubles.clear();
+            doubles.put(vector, start, count);
+            out.write(bytes, 0, count * 8);
+        }
+    }
+
+    /**
+     * Reads a vector written by {@link #writeVector(DataOutputStream, double[])}.
+     *
+     * @param in the source stream
+     * @param expectedLength the length the vector must have
+     * @return the vector
+     * @throws IOException if the stream cannot be read or the vector has not
+     *             the expected length
+     */
+    static double[] readVector(DataInputStream in, int expectedLength) throws IOException {
+        int length = in.readInt();
+        if (length != expectedLength) {
+            throw new IOException("Expected a vector of " + expectedLength + " values, got "
+                    + length);
+        }
+        double[] vector = new double[length];
+        byte[] bytes = new byte[BUFFER_SIZE];
+        DoubleBuffer doubles = ByteBuffer.wrap(bytes).asDoubleBuffer();
+        for (int start = 0; start < length; start += doubles.capacity()) {
+            int count = Math.min(doubles.capacity(), length - start);
+            in.readFully(bytes, 0, count * 8);
+            doubles.clear();
+            doubles.get(vector, start, count);
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,120 @@
+package com.penna.neural.experiments;
+
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.utils.RandomUtils;
+
+/**
+ * Compares the fast approximate activation functions with the exact ones.
+ * The benchmark first checks that the absolute error of each approximation
+ * stays within its declared bound, {@link ActivationFunctions#getMaxError()},
+ * over a dense sweep of inputs and at the infinities. If an approximation
+ * exceeds its bound, or returns NaN, the benchmark exits immediately with a
+ * non-zero code, so that it can guard the approximations in a build. Otherwise
+ * it measures the time per element of the activations and the feedforward
+ * throughput of a wide network.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class ActivationBenchmark {
+
+    private static final long SEED = 1L;
+    private static final double SWEEP_RANGE = 40;
+    private static final double SWEEP_STEP = 1e-4;
+    private static final int RUNS = 50;
+
+    public static void main(String[] argv) throws NetworkInitializationException {
+        ActivationFunctions[][] pairs = {
+                { ActivationFunctions.SIGMOID, ActivationFunctions.FAST_SIGMOID },
+                { ActivationFunctions.TANH, ActivationFunctions.FAST_TANH } };
+        boolean failed = false;
+        double[] errors = new double[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            errors[i] = maxError(pairs[i][0], pairs[i][1]);
+            // NaN errors fail as well
+            if (!(errors[i] <= pairs[i][1].getMaxError())) {
+                System.err.println(String.format("FAILED: %s max error %.2e exceeds its bound "
+                        + "%.2e", pairs[i][1], errors[i], pairs[i][1].getMaxError()));
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+        DoubleMatrix zetas = RandomUtils.randn(1000, 1000, new Random(SEED)).muli(4);
+        System.out.println("function\tmax error\tbound\t\tns/element\tspeedup");
+        for (int i = 0; i < pairs.length; i++) {
+            ActivationFunctions[] pair = pairs[i];
+            double exactNanos = nanosPerElement(pair[0], zetas);
+            double fastNanos = nanosPerElement(pair[1], zetas);
+            System.out.println(String.format("%s\t-\t\t-\t\t%.2f", pair[0], exactNanos));
+            System.out.println(String.format("%s\t%.2e\t%.2e\t%.2f\t\t%.2f", pair[1],
+                    errors[i], pair[1].getMaxError(), fastNanos, exactNanos / fastNanos));
+        }
+        // end to end: feedforward of a wide network, exact then approximate
+        NeuralNetwork nn = new NeuralNetwork(new int[] { 784, 1000, 1000, 10 },
+                CostFunctions.CROSS_ENTROPY, ActivationFunctions.SIGMOID, SEED);
+        DoubleMatrix inputs = RandomUtils.randn(784, 100, new Random(SEED));
+        double exactMillis = feedForwardMillis(nn, inputs);
+        DoubleMatrix exactOutputs = nn.feedForward(inputs);
+        nn.setActivationFunction(ActivationFunctions.FAST_SIGMOID);
+        double fastMillis = feedForwardMillis(nn, inputs);
+        double outputError = nn.feedForward(inputs).sub(exactOutputs).normmax();
+        System.out.println(String.format("feedforward 784-1000-1000-10, batch 100: %.2f ms "
+                + "exact, %.2f ms approximate, max output difference %.2e", exactMillis,
+                fastMillis, outputError));
+    }
+
+    /**
+     * Returns the maximum absolute error of an approximation, NaN if it
+     * returns NaN for an input where the exact function does not.
+     */
+    private static double maxError(ActivationFunctions exact, ActivationFunctions fast) {
+        int points = (int) (2 * SWEEP_RANGE / SWEEP_STEP) + 1;
+        DoubleMatrix zetas = new DoubleMatrix(points + 2, 1);
+        for (int i = 0; i < points; i++) {
+            zetas.data[i] = -SWEEP_RANGE + i * SWEEP_STEP;
+        }
+        zetas.data[points] = Double.NEGATIVE_INFINITY;
+        zetas.data[points + 1] = Double.POSITIVE_INFINITY;
+        DoubleMatrix errors = fast.activate(zetas).sub(exact.activate(zetas));
+        double maxError = 0;
+        for (int i = 0; i < errors.length; i++) {
+            // unlike normmax, NaN is not skipped
+            double error = Math.abs(errors.data[i]);
+            if (Double.isNaN(error)) {
+                return Double.NaN;
+            }
+            maxError = Math.max(maxError, error);
+        }
+        return maxError;
+    }
+
+    private static double nanosPerElement(ActivationFunctions function, DoubleMatrix zetas) {
+        // warm up the JIT compiler
+        for (int i = 0; i < RUNS; i++) {
+            function.activate(zetas);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            function.activate(zetas);
+        }
+        return (double) (System.nanoTime() - start) / RUNS / zetas.length;
+    }
+
+    private static double feedForwardMillis(NeuralNetwork nn, DoubleMatrix inputs) {
+        for (int i = 0; i < RUNS / 10; i++) {
+            nn.feedForward(inputs);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            nn.feedForward(inputs);
+        }
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+}
@@ -1,5 +1,6 @@
 package com.penna.neural.experiments;
 
+import java.util.Random;
 import org.jblas.DoubleMatrix;
 
 import com.penna.neural.core.Dataset;
@@ -20,6 +21,8 @@ import com.penna.neural.utils.DoubleMatrixUtils;
  */
 public class DummyExperiment {
 
+    private static final long SEED = 1L;
+
     public static void main(String[] argv) throws NetworkInitializationException {
         // Creating fictitious training instance
         Instance trainingIns1 = new Instance(new DoubleMatrix(new double[][] { { 1.0 }, { -0.5 },
@@ -40,8 +43,10 @@ public class DummyExperiment {
         trainSet.add(trainingIns3);
         trainSet.add(trainingIns4);
 
+        trainSet.setRandom(new Random(SEED));
+
         NeuralNetwork nn = new NeuralNetwork(new int[] { 3, 5, 4 }, CostFunctions.QUADRATIC,
-                ActivationFunctions.SIGMOID);
+                ActivationFunctions.SIGMOID, SEED);
         int epochs = 100;
         double learningRate = 3d;
         int miniBatchSize = 2;
@@ -0,0 +1,72 @@
+package com.penna.neural.experiments;
+
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.EnsembleNetwork;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.utils.RandomUtils;
+
+/**
+ * Compares the latency of an {@link EnsembleNetwork} with the evaluation of
+ * its members one by one, for several batch sizes, and checks that the mean
+ * of the ensemble matches the mean of the members' outputs.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class EnsembleBenchmark {
+
+    private static final long SEED = 1L;
+    private static final int NUM_MEMBERS = 5;
+    private static final int[] LAYER_SIZES = { 784, 100, 10 };
+    private static final int[] BATCH_SIZES = { 1, 10, 100 };
+    private static final int RUNS = 200;
+
+    public static void main(String[] argv) throws NetworkInitializationException {
+        NeuralNetwork[] members = new NeuralNetwork[NUM_MEMBERS];
+        for (int m = 0; m < NUM_MEMBERS; m++) {
+            members[m] = new NeuralNetwork(LAYER_SIZES, CostFunctions.CROSS_ENTROPY,
+                    ActivationFunctions.SIGMOID, SEED + m);
+        }
+        EnsembleNetwork ensemble = new EnsembleNetwork(EnsembleNetwork.Combination.MEAN,
+                members);
+        System.out.println("batch\tmembers ms\tensemble ms\tspeedup\tmax difference");
+        for (int batchSize : BATCH_SIZES) {
+            DoubleMatrix inputs = RandomUtils.randn(LAYER_SIZES[0], batchSize, new Random(SEED));
+            DoubleMatrix mean = new DoubleMatrix(LAYER_SIZES[LAYER_SIZES.length - 1], batchSize);
+            for (NeuralNetwork member : members) {
+                mean.addi(member.feedForward(inputs));
+            }
+            mean.divi(NUM_MEMBERS);
+            double difference = ensemble.feedForward(inputs).sub(mean).normmax();
+            // warm up the JIT compiler, then time
+            timeMembers(members, inputs);
+            timeEnsemble(ensemble, inputs);
+            double membersMillis = timeMembers(members, inputs);
+            double ensembleMillis = timeEnsemble(ensemble, inputs);
+            System.out.println(String.format("%d\t%.3f\t\t%.3f\t\t%.2f\t%.2e", batchSize,
+                    membersMillis, ensembleMillis, membersMillis / ensembleMillis, difference));
+        }
+    }
+
+    private static double timeMembers(NeuralNetwork[] members, DoubleMatrix inputs) {
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            for (NeuralNetwork member : members) {
+                member.feedForward(inputs);
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+
+    private static double timeEnsemble(EnsembleNetwork ensemble, DoubleMatrix inputs) {
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            ensemble.feedForward(inputs);
+        }
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+}
@@ -2,9 +2,12 @@ package com.penna.neural.experiments;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import org.jblas.DoubleMatrix;
 import com.penna.neural.core.Dataset;
+import com.penna.neural.core.FeatureNormalizer;
 import com.penna.neural.core.Instance;
 import com.penna.neural.core.NeuralNetwork;
 import com.penna.neural.evaluation.EvaluationMetrics;
@@ -12,6 +15,7 @@ import com.penna.neural.exceptions.NetworkInitializationException;
 import com.penna.neural.exceptions.NoLabelException;
 import com.penna.neural.functions.ActivationFunctions;
 import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.functions.WeightInitializers;
 import com.penna.neural.utils.MnistUtils;
 
 /**
@@ -28,25 +32,11 @@ import com.penna.neural.utils.MnistUtils;
  */
 public class MnistBinaryExperiment {
 
-    private static Dataset getBinaryDataset(Dataset dataset, int labelOne, int labelTwo, int maxSize)
-            throws NoLabelException {
-        Dataset binaryDataset = new Dataset();
-        int labelOneCount = 0;
-        int labelTwoCount = 0;
-        for (Instance instance : dataset) {
-            if (instance.getLabels().get(labelOne) == 1 && labelOneCount < maxSize) {
-                binaryDataset.add(instance);
-                labelOneCount++;
-            }
-            if (instance.getLabels().get(labelTwo) == 1 && labelTwoCount < maxSize) {
-                binaryDataset.add(instance);
-                labelTwoCount++;
-            }
-            if (labelOneCount >= maxSize && labelTwoCount >= maxSize) {
-                break;
-            }
-        }
-        return binaryDataset;
+    private static Dataset getBinaryDataset(Dataset dataset, int labelOne, int labelTwo,
+            int maxSize) {
+        // stops reading the dataset once both digits have maxSize instances
+        return dataset.pipeline().ofClasses(labelOne, labelTwo).balance(maxSize)
+                .limit(2L * maxSize).toDataset();
     }
 
     /**
@@ -61,26 +51,38 @@ public class MnistBinaryExperiment {
             NoLabelException {
         // reading and creating training and test data
         if (argv.length < 1) {
-            System.out.println("usage: MnistBinaryExperiment <path to MNIST files>");
+            System.out.println("usage: MnistBinaryExperiment <path to MNIST files> [seed]"
+                    + " [initializer]");
             System.exit(-1);
         }
         String path = argv[0];
+        long seed = argv.length > 1 ? Long.parseLong(argv[1]) : 1L;
         String labelFileTr = path + "/train-labels-idx1-ubyte";
         String imageFileTr = path + "/train-images-idx3-ubyte";
         String labelFileTe = path + "/t10k-labels-idx1-ubyte";
         String imageFileTe = path + "/t10k-images-idx3-ubyte";
-        Dataset trainingSet = MnistUtils.readMNISTdata(labelFileTr, imageFileTr);
-        Dataset testSet = MnistUtils.readMNISTdata(labelFileTe, imageFileTe);
+        Dataset trainingSet = MnistUtils.readMNISTdata(labelFileTr, imageFileTr, path
+                + "/train.cache");
+        Dataset testSet = MnistUtils.readMNISTdata(labelFileTe, imageFileTe, path
+                + "/t10k.cache");
         Dataset binaryTrainingSet = getBinaryDataset(trainingSet, 1, 8, 1000);
         Dataset binaryTestSet = getBinaryDataset(testSet, 1, 8, 500);
 
         // Setting up network and training
         int[] layerSizes = { 784, 10, 10 };
+        WeightInitializers initializer = argv.length > 2 ? WeightInitializers.valueOf(argv[2])
+                : WeightInitializers.forActivation(ActivationFunctions.SIGMOID);
+        WeightInitializers[] initializers = new WeightInitializers[layerSizes.length - 1];
+        Arrays.fill(initializers, initializer);
         NeuralNetwork nn = new NeuralNetwork(layerSizes, CostFunctions.QUADRATIC,
-                ActivationFunctions.SIGMOID);
+                ActivationFunctions.SIGMOID, initializers, seed);
+        // raw pixels are in [0, 255] and would saturate the sigmoid units
+        nn.setInputNormalizer(FeatureNormalizer.fit(binaryTrainingSet,
+                FeatureNormalizer.Method.MIN_MAX));
         int epochs = 30;
         double learningRate = 0.1d;
         int miniBatchSize = 10;
+        binaryTrainingSet.setRandom(new Random(seed));
         nn.stocasticGradientDescent(binaryTrainingSet, epochs, learningRate, miniBatchSize);
         List<DoubleMatrix> trueLabels = new ArrayList<DoubleMatrix>();
         List<DoubleMatrix> predictedLabels = new ArrayList<DoubleMatrix>();
@@ -92,6 +94,7 @@ public class MnistBinaryExperiment {
             }
         }
         double accuracy = EvaluationMetrics.accuracy(predictedLabels, trueLabels);
+        System.out.println("Initializer : " + initializer);
         System.out.println("Accuracy : " + String.format("%.3f", accuracy));
         double avgCosine = EvaluationMetrics.averageCosine(predictedLabels, trueLabels);
         System.out.println("Average cosine: " + String.format("%.3f", avgCosine));
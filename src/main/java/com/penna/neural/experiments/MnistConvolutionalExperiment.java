@@ -0,0 +1,75 @@
+package com.penna.neural.experiments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.ConvolutionalLayer;
+import com.penna.neural.core.Dataset;
+import com.penna.neural.core.FeatureNormalizer;
+import com.penna.neural.core.Instance;
+import com.penna.neural.core.MaxPoolingLayer;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.evaluation.EvaluationMetrics;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.penna.neural.exceptions.NoLabelException;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.utils.MnistUtils;
+
+/**
+ * Same as {@link MnistExperiment}, but images are first processed by a
+ * convolutional layer with 8 filters of 5x5 pixels and by a 2x2 max pooling
+ * layer, instead of being fed directly to the fully connected layers.
+ * 
+ * @author mpennacchiotti
+ * 
+ */
+public class MnistConvolutionalExperiment {
+
+    public static void main(String[] argv) throws IOException, NetworkInitializationException,
+            NoLabelException {
+        // reading and creating training and test data
+        if (argv.length < 1) {
+            System.out.println("usage: MnistConvolutionalExperiment <path to MNIST files>"
+                    + " [seed]");
+            System.exit(-1);
+        }
+        String path = argv[0];
+        long seed = argv.length > 1 ? Long.parseLong(argv[1]) : 1L;
+        Dataset trainingSet = MnistUtils.readMNISTdata(path + "/train-labels-idx1-ubyte", path
+                + "/train-images-idx3-ubyte", path + "/train.cache");
+        Dataset testSet = MnistUtils.readMNISTdata(path + "/t10k-labels-idx1-ubyte", path
+                + "/t10k-images-idx3-ubyte", path + "/t10k.cache");
+        trainingSet = trainingSet.getSubSet(0, 30000);
+        // Setting up network and training
+        ConvolutionalLayer convolution = new ConvolutionalLayer(1, 28, 28, 8, 5, 1, 0,
+                ActivationFunctions.SIGMOID);
+        MaxPoolingLayer pooling = new MaxPoolingLayer(8, convolution.getOutputHeight(),
+                convolution.getOutputWidth(), 2);
+        int[] layerSizes = { pooling.getOutputSize(), 30, 10 };
+        NeuralNetwork nn = new NeuralNetwork(layerSizes, CostFunctions.QUADRATIC,
+                ActivationFunctions.SIGMOID, seed);
+        nn.setImageLayers(convolution, pooling);
+        nn.setInputNormalizer(FeatureNormalizer.fit(trainingSet,
+                FeatureNormalizer.Method.MIN_MAX));
+        int epochs = 10;
+        double learningRate = 0.1d;
+        int miniBatchSize = 10;
+        trainingSet.setRandom(new Random(seed));
+        nn.stocasticGradientDescent(trainingSet, epochs, learningRate, miniBatchSize);
+        List<DoubleMatrix> trueLabels = new ArrayList<DoubleMatrix>();
+        List<DoubleMatrix> predictedLabels = new ArrayList<DoubleMatrix>();
+        for (Instance instance : testSet) {
+            if (instance.isLabelled()) {
+                predictedLabels.add(nn.feedForward(instance.getFeatures()));
+                trueLabels.add(instance.getLabels());
+            }
+        }
+        double accuracy = EvaluationMetrics.accuracy(predictedLabels, trueLabels);
+        System.out.println("Accuracy : " + String.format("%.3f", accuracy));
+        double avgCosine = EvaluationMetrics.averageCosine(predictedLabels, trueLabels);
+        System.out.println("Average cosine: " + String.format("%.3f", avgCosine));
+    }
+}
@@ -0,0 +1,182 @@
+package com.penna.neural.experiments;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ExecutionConfig;
+import com.penna.neural.core.Dataset;
+import com.penna.neural.core.FeatureNormalizer;
+import com.penna.neural.core.Instance;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.distributed.ParameterAveragingCoordinator;
+import com.penna.neural.distributed.ParameterAveragingWorker;
+import com.penna.neural.evaluation.EvaluationMetrics;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.penna.neural.exceptions.NoLabelException;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.utils.BinaryDatasetUtils;
+import com.penna.neural.utils.MnistUtils;
+import com.penna.neural.utils.RandomUtils;
+
+/**
+ * Trains the network of the MNIST experiment with several worker processes on
+ * the same host, synchronized by parameter averaging over loopback sockets.
+ * The coordinator writes the shard of the training set of each worker to a
+ * binary cache, and launches the workers as child JVMs with a small heap and
+ * an equal share of the worker and native BLAS threads of its
+ * {@link ExecutionConfig}. Each worker only loads and trains on its own
+ * shard. The coordinator evaluates the averaged network on the test set.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class MnistDistributedExperiment {
+
+    private static final int[] LAYER_SIZES = { 784, 30, 10 };
+    private static final long SEED = 1L;
+    private static final int EPOCHS = 10;
+    private static final double LEARN_RATE = 0.1d;
+    private static final int MINI_BATCH_SIZE = 10;
+    private static final int BATCHES_PER_ROUND = 50;
+    private static final String WORKER_HEAP = "-Xmx512m";
+    private static final String NORMALIZER_FILE = "normalizer.ser";
+
+    public static void main(String[] argv) throws IOException, InterruptedException,
+            NetworkInitializationException, NoLabelException {
+        if (argv.length > 2 && "worker".equals(argv[0])) {
+            runWorker(new File(argv[1]), Integer.parseInt(argv[2]));
+            return;
+        }
+        if (argv.length < 1) {
+            System.out.println("usage: MnistDistributedExperiment <path to MNIST files>"
+                    + " [number of workers]");
+            System.exit(-1);
+        }
+        String path = argv[0];
+        int numWorkers = argv.length > 1 ? Integer.parseInt(argv[1]) : 2;
+        File shardDirectory = Files.createTempDirectory("mnist-shards").toFile();
+        NeuralNetwork nn = createNetwork(writeShards(path, shardDirectory, numWorkers));
+        ParameterAveragingCoordinator coordinator = new ParameterAveragingCoordinator(nn, 0,
+                numWorkers);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        List<Process> workers = new ArrayList<Process>();
+        // the workers share the threads of this process
+        ExecutionConfig workerConfig = ExecutionConfig.getDefault().forProcesses(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add(WORKER_HEAP);
+            command.addAll(workerConfig.getJvmOptions());
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                    MnistDistributedExperiment.class.getName(), "worker", shardDirectory
+                            .getPath(), String.valueOf(coordinator.getPort())));
+            workers.add(workerConfig.configure(new ProcessBuilder(command)).inheritIO().start());
+        }
+        long start = System.nanoTime();
+        coordinator.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Process worker : workers) {
+            worker.waitFor();
+        }
+        for (File file : shardDirectory.listFiles()) {
+            file.delete();
+        }
+        shardDirectory.delete();
+        Dataset testSet = MnistUtils.readMNISTdata(path + "/t10k-labels-idx1-ubyte", path
+                + "/t10k-images-idx3-ubyte", path + "/t10k.cache");
+        List<DoubleMatrix> trueLabels = new ArrayList<DoubleMatrix>();
+        List<DoubleMatrix> predictedLabels = new ArrayList<DoubleMatrix>();
+        for (Instance instance : testSet) {
+            if (instance.isLabelled()) {
+                predictedLabels.add(nn.feedForward(instance.getFeatures()));
+                trueLabels.add(instance.getLabels());
+            }
+        }
+        double accuracy = EvaluationMetrics.accuracy(predictedLabels, trueLabels);
+        System.out.println("Workers : " + numWorkers);
+        System.out.println("Training time (s) : " + String.format("%.1f", seconds));
+        System.out.println("Accuracy : " + String.format("%.3f", accuracy));
+    }
+
+    /**
+     * Reads the training set, and writes the shard of each worker to a binary
+     * cache and the input normalizer, fitted on the whole training set, to a
+     * file of the shard directory. Workers then only load their own shard.
+     *
+     * @return the input normalizer
+     */
+    private static FeatureNormalizer writeShards(String path, File shardDirectory,
+            int numWorkers) throws IOException, NoLabelException {
+        Dataset trainingSet = MnistUtils.readMNISTdata(path + "/train-labels-idx1-ubyte", path
+                + "/train-images-idx3-ubyte", path + "/train.cache").getSubSet(0, 30000);
+        FeatureNormalizer normalizer = FeatureNormalizer.fit(trainingSet,
+                FeatureNormalizer.Method.MIN_MAX);
+        for (int i = 0; i < numWorkers; i++) {
+            BinaryDatasetUtils.writeCache(ParameterAveragingWorker.getShard(trainingSet, i,
+                    numWorkers), shardFile(shardDirectory, i).getPath(), true, false);
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(
+                shardDirectory, NORMALIZER_FILE)));
+        try {
+            out.writeObject(normalizer);
+        } finally {
+            out.close();
+        }
+        return normalizer;
+    }
+
+    private static File shardFile(File shardDirectory, int workerIndex) {
+        return new File(shardDirectory, "shard-" + workerIndex + ".cache");
+    }
+
+    /**
+     * Creates the network of the coordinator and of the workers. The input
+     * normalizer is not exchanged by the workers, so all the processes use
+     * the normalizer fitted by the coordinator.
+     */
+    private static NeuralNetwork createNetwork(FeatureNormalizer normalizer)
+            throws NetworkInitializationException {
+        NeuralNetwork nn = new NeuralNetwork(LAYER_SIZES, CostFunctions.QUADRATIC,
+                ActivationFunctions.SIGMOID, SEED);
+        nn.setInputNormalizer(normalizer);
+        return nn;
+    }
+
+    private static void runWorker(File shardDirectory, int port) throws IOException,
+            NetworkInitializationException {
+        FeatureNormalizer normalizer;
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(new File(
+                shardDirectory, NORMALIZER_FILE)));
+        try {
+            normalizer = (FeatureNormalizer) in.readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new IOException("Invalid normalizer file", cnfe);
+        } finally {
+            in.close();
+        }
+        NeuralNetwork nn = createNetwork(normalizer);
+        ParameterAveragingWorker worker = new ParameterAveragingWorker(nn, InetAddress
+                .getLoopbackAddress().getHostAddress(), port);
+        try {
+            Dataset shard = BinaryDatasetUtils.readCache(shardFile(shardDirectory,
+                    worker.getWorkerIndex()).getPath());
+            // independent shuffles for the workers
+            shard.setRandom(RandomUtils.split(SEED, worker.getNumWorkers())[worker
+                    .getWorkerIndex()]);
+            worker.train(shard, EPOCHS, LEARN_RATE, MINI_BATCH_SIZE, BATCHES_PER_ROUND);
+        } finally {
+            worker.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.penna.neural.experiments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.Dataset;
+import com.penna.neural.core.FeatureNormalizer;
+import com.penna.neural.core.Instance;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.evaluation.EvaluationMetrics;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.penna.neural.exceptions.NoLabelException;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+import com.penna.neural.utils.MnistUtils;
+
+/**
+ * The goal of the MNIST pruning experiment is to measure the trade-off between
+ * accuracy and inference speed of magnitude pruning. A network is trained as
+ * in {@link MnistExperiment}, then pruned to increasing sparsities, with one
+ * epoch of fine-tuning after each pruning step. For each sparsity the
+ * experiment prints the accuracy on the test set and the time to evaluate it
+ * in minibatches.
+ * 
+ * @author mpennacchiotti
+ * 
+ */
+public class MnistPruningExperiment {
+
+    private static final int EVALUATION_BATCH_SIZE = 64;
+
+    public static void main(String[] argv) throws IOException, NetworkInitializationException,
+            NoLabelException {
+        if (argv.length < 1) {
+            System.out.println("usage: MnistPruningExperiment <path to MNIST files> [seed]");
+            System.exit(-1);
+        }
+        String path = argv[0];
+        long seed = argv.length > 1 ? Long.parseLong(argv[1]) : 1L;
+        Dataset trainingSet = MnistUtils.readMNISTdata(path + "/train-labels-idx1-ubyte", path
+                + "/train-images-idx3-ubyte", path + "/train.cache");
+        Dataset testSet = MnistUtils.readMNISTdata(path + "/t10k-labels-idx1-ubyte", path
+                + "/t10k-images-idx3-ubyte", path + "/t10k.cache");
+        trainingSet = trainingSet.getSubSet(0, 30000);
+        testSet.removeUnlabelledInstance();
+        int[] layerSizes = { 784, 100, 10 };
+        NeuralNetwork nn = new NeuralNetwork(layerSizes, CostFunctions.QUADRATIC,
+                ActivationFunctions.SIGMOID, seed);
+        nn.setInputNormalizer(FeatureNormalizer.fit(trainingSet,
+                FeatureNormalizer.Method.MIN_MAX));
+        double learningRate = 0.1d;
+        int miniBatchSize = 10;
+        trainingSet.setRandom(new Random(seed));
+        nn.stocasticGradientDescent(trainingSet, 20, learningRate, miniBatchSize);
+        System.out.println("Sparsity\tAccuracy\tSparse layers\tTime (ms)");
+        report(nn, testSet, 0);
+        for (double sparsity : new double[] { 0.5, 0.7, 0.8, 0.9, 0.95 }) {
+            nn.pruneToSparsity(sparsity);
+            nn.stocasticGradientDescent(trainingSet, 1, learningRate, miniBatchSize);
+            report(nn, testSet, sparsity);
+        }
+    }
+
+    private static void report(NeuralNetwork nn, Dataset testSet, double sparsity)
+            throws NoLabelException {
+        List<DoubleMatrix> trueLabels = new ArrayList<DoubleMatrix>();
+        List<DoubleMatrix> predictedLabels = new ArrayList<DoubleMatrix>();
+        long start = System.nanoTime();
+        for (int i = 0; i < testSet.size(); i += EVALUATION_BATCH_SIZE) {
+            Dataset batch = testSet.getSubSet(i, Math.min(i + EVALUATION_BATCH_SIZE, testSet
+                    .size()));
+            DoubleMatrix inputs = new DoubleMatrix(batch.getInstance(0).getFeatures().length,
+                    batch.size());
+            for (int j = 0; j < batch.size(); j++) {
+                inputs.putColumn(j, batch.getInstance(j).getFeatures());
+                trueLabels.add(batch.getInstance(j).getLabels());
+            }
+            DoubleMatrix outputs = nn.feedForward(inputs);
+            for (int j = 0; j < batch.size(); j++) {
+                predictedLabels.add(outputs.getColumn(j));
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        int numSparse = 0;
+        for (int layer = 1; layer < nn.getLayerSizes().length; layer++) {
+            numSparse += nn.usesSparseWeights(layer) ? 1 : 0;
+        }
+        double accuracy = EvaluationMetrics.accuracy(predictedLabels, trueLabels);
+        System.out.println(String.format("%.2f\t\t%.3f\t\t%d\t\t%.1f", sparsity, accuracy,
+                numSparse, millis));
+    }
+}
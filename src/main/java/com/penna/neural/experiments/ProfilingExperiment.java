@@ -0,0 +1,49 @@
+package com.penna.neural.experiments;
+
+import com.penna.neural.core.NetworkProfiler;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.penna.neural.functions.ActivationFunctions;
+import com.penna.neural.functions.CostFunctions;
+
+/**
+ * Profiles the training and inference passes of a fully connected network for
+ * several minibatch sizes, and prints the time, matrix product throughput,
+ * activation bandwidth and allocations of each layer. The backend is chosen
+ * with the <code>neural.backend</code> system property.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class ProfilingExperiment {
+
+    private static final long SEED = 1L;
+
+    public static void main(String[] argv) throws NetworkInitializationException {
+        if (argv.length < 1) {
+            System.out.println("usage: ProfilingExperiment <layer sizes, e.g. 784,100,10>"
+                    + " [batch sizes, e.g. 10,100] [runs]");
+            System.exit(-1);
+        }
+        int[] layerSizes = parseInts(argv[0]);
+        int[] batchSizes = argv.length > 1 ? parseInts(argv[1]) : new int[] { 10, 100 };
+        int numRuns = argv.length > 2 ? Integer.parseInt(argv[2]) : 20;
+        NeuralNetwork nn = new NeuralNetwork(layerSizes, CostFunctions.CROSS_ENTROPY,
+                ActivationFunctions.SIGMOID, SEED);
+        for (int batchSize : batchSizes) {
+            NetworkProfiler profiler = new NetworkProfiler(nn, batchSize, SEED);
+            profiler.run(numRuns);
+            System.out.println(profiler);
+            System.out.println();
+        }
+    }
+
+    private static int[] parseInts(String list) {
+        String[] values = list.split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+}
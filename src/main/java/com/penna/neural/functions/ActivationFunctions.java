@@ -1,7 +1,7 @@
 package com.penna.neural.functions;
 
 import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
+import com.penna.neural.backends.ComputeBackends;
 
 /**
  * Activation functions that can be used in the neural network.
@@ -18,19 +18,14 @@ public enum ActivationFunctions {
         // zeta values for the
         // layer.
         @Override
-        public DoubleMatrix activate(DoubleMatrix zetas) {
-            DoubleMatrix oneMatrix = DoubleMatrix.ones(zetas.rows);
-            DoubleMatrix oneMatrix1 = DoubleMatrix.ones(zetas.rows);
-            DoubleMatrix sigmoid = oneMatrix.div(oneMatrix1.add(MatrixFunctions.exp(zetas.neg())));
-            return sigmoid;
+        public DoubleMatrix activate(DoubleMatrix zetas, ComputeBackends backend) {
+            return backend.sigmoid(zetas);
         }
 
         // Deriviative of the activation function as a @ (1-a).
         @Override
         public DoubleMatrix derivative(DoubleMatrix activations) {
-            DoubleMatrix ret = activations.mul(DoubleMatrix.ones(activations.rows, 1).sub(
-                    activations));
-            return ret;
+            return activations.rsub(1).muli(activations);
         }
     },
     /**
@@ -39,24 +34,80 @@ public enum ActivationFunctions {
     TANH {
         // Activates the function as: a = tanh(z).
         @Override
-        public DoubleMatrix activate(DoubleMatrix zetas) {
-            return MatrixFunctions.tanh(zetas);
+        public DoubleMatrix activate(DoubleMatrix zetas, ComputeBackends backend) {
+            return backend.tanh(zetas);
         }
 
         // Derivative of the activation function 1 - a^2.
         @Override
         public DoubleMatrix derivative(DoubleMatrix activations) {
-            return DoubleMatrix.ones(activations.rows, 1).sub(activations.mul(activations));
+            return activations.mul(activations).rsubi(1);
+        }
+    },
+    /**
+     * Sigmoid activation function, approximated by interpolation in a table
+     * with an absolute error below 1e-6. Faster than {@link #SIGMOID}, and
+     * computed in Java whatever the backend.
+     */
+    FAST_SIGMOID {
+        @Override
+        public DoubleMatrix activate(DoubleMatrix zetas, ComputeBackends backend) {
+            return SigmoidTable.sigmoid(zetas);
+        }
+
+        @Override
+        public DoubleMatrix derivative(DoubleMatrix activations) {
+            return SIGMOID.derivative(activations);
+        }
+
+        @Override
+        public double getMaxError() {
+            return SigmoidTable.MAX_ERROR;
+        }
+    },
+    /**
+     * Tanh activation function, approximated through the sigmoid table with an
+     * absolute error below 2e-6. Faster than {@link #TANH}, and computed in
+     * Java whatever the backend.
+     */
+    FAST_TANH {
+        @Override
+        public DoubleMatrix activate(DoubleMatrix zetas, ComputeBackends backend) {
+            return SigmoidTable.tanh(zetas);
+        }
+
+        @Override
+        public DoubleMatrix derivative(DoubleMatrix activations) {
+            return TANH.derivative(activations);
+        }
+
+        @Override
+        public double getMaxError() {
+            return 2 * SigmoidTable.MAX_ERROR;
         }
     };
 
     /**
-     * Applies the activation function to the zeta of the layer's neurons
+     * Applies the activation function to the zeta of the layer's neurons. The
+     * function is applied element-wise, so zetas may hold one instance per
+     * column.
      * 
      * @param zetas the zetas of the layer
      * @return the activation values for the layer
      */
-    public abstract DoubleMatrix activate(DoubleMatrix zetas);
+    public DoubleMatrix activate(DoubleMatrix zetas) {
+        return activate(zetas, ComputeBackends.getDefault());
+    }
+
+    /**
+     * Applies the activation function to the zeta of the layer's neurons,
+     * computed by the given backend.
+     * 
+     * @param zetas the zetas of the layer
+     * @param backend the backend computing the function
+     * @return the activation values for the layer
+     */
+    public abstract DoubleMatrix activate(DoubleMatrix zetas, ComputeBackends backend);
 
     /**
      * Computes the derivative of the activation function with respect to a
@@ -66,4 +117,14 @@ public enum ActivationFunctions {
      * @return derivative of the activation `for the layer
      */
     public abstract DoubleMatrix derivative(DoubleMatrix activations);
+
+    /**
+     * Returns the bound of the absolute error of the activations, for the
+     * approximate functions.
+     * 
+     * @return the maximum absolute error, 0 for exact functions
+     */
+    public double getMaxError() {
+        return 0;
+    }
 }
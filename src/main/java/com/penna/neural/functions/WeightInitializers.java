@@ -0,0 +1,121 @@
+package com.penna.neural.functions;
+
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.utils.RandomUtils;
+
+/**
+ * Weight initialization schemes that can be used in the neural network. Each
+ * scheme draws the weights of a layer from a distribution whose variance
+ * depends on the number of inputs (fan-in) and outputs (fan-out) of the layer,
+ * so that neurons are not saturated when training starts.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public enum WeightInitializers {
+    /**
+     * Standard normal distribution, for weights and biases
+     */
+    NORMAL {
+        @Override
+        public DoubleMatrix initialize(int fanOut, int fanIn, Random random) {
+            return RandomUtils.randn(fanOut, fanIn, random);
+        }
+
+        @Override
+        public DoubleMatrix initializeBiases(int size, Random random) {
+            return RandomUtils.randn(size, 1, random);
+        }
+    },
+    /**
+     * Normal distribution with standard deviation 1 / sqrt(fan-in)
+     */
+    SCALED_NORMAL {
+        @Override
+        public DoubleMatrix initialize(int fanOut, int fanIn, Random random) {
+            return RandomUtils.randn(fanOut, fanIn, random).muli(1 / Math.sqrt(fanIn));
+        }
+    },
+    /**
+     * Uniform distribution in [-1 / sqrt(fan-in), 1 / sqrt(fan-in)]
+     */
+    UNIFORM {
+        @Override
+        public DoubleMatrix initialize(int fanOut, int fanIn, Random random) {
+            return uniform(fanOut, fanIn, 1 / Math.sqrt(fanIn), random);
+        }
+    },
+    /**
+     * Xavier/Glorot uniform distribution in [-r, r], with r = sqrt(6 / (fan-in
+     * + fan-out)). Suited to sigmoid and tanh neurons.
+     */
+    XAVIER {
+        @Override
+        public DoubleMatrix initialize(int fanOut, int fanIn, Random random) {
+            return uniform(fanOut, fanIn, Math.sqrt(6d / (fanIn + fanOut)), random);
+        }
+    },
+    /**
+     * He normal distribution with standard deviation sqrt(2 / fan-in). Suited
+     * to rectified linear neurons.
+     */
+    HE {
+        @Override
+        public DoubleMatrix initialize(int fanOut, int fanIn, Random random) {
+            return RandomUtils.randn(fanOut, fanIn, random).muli(Math.sqrt(2d / fanIn));
+        }
+    };
+
+    /**
+     * Draws the weights of a layer.
+     *
+     * @param fanOut number of neurons of the layer
+     * @param fanIn number of neurons of the previous layer
+     * @param random the generator to draw the weights from
+     * @return the weight matrix of the layer
+     */
+    public abstract DoubleMatrix initialize(int fanOut, int fanIn, Random random);
+
+    /**
+     * Draws the biases of a layer. Biases are set to zero, unless the scheme
+     * specifies otherwise.
+     *
+     * @param size number of neurons of the layer
+     * @param random the generator to draw the biases from
+     * @return the bias matrix of the layer
+     */
+    public DoubleMatrix initializeBiases(int size, Random random) {
+        return DoubleMatrix.zeros(size, 1);
+    }
+
+    /**
+     * Returns the default initialization scheme for neurons with the given
+     * activation function: {@link #XAVIER} for sigmoid and tanh neurons, exact
+     * or approximated.
+     *
+     * @param activFunc the activation function of the layer
+     * @return the initialization scheme
+     * @throws IllegalArgumentException if the activation function has no
+     *             default scheme
+     */
+    public static WeightInitializers forActivation(ActivationFunctions activFunc) {
+        switch (activFunc) {
+        case SIGMOID:
+        case TANH:
+        case FAST_SIGMOID:
+        case FAST_TANH:
+            return XAVIER;
+        default:
+            throw new IllegalArgumentException("No initialization scheme for " + activFunc);
+        }
+    }
+
+    private static DoubleMatrix uniform(int rows, int columns, double range, Random random) {
+        DoubleMatrix matrix = new DoubleMatrix(rows, columns);
+        for (int i = 0; i < matrix.length; i++) {
+            matrix.data[i] = (2 * random.nextDouble() - 1) * range;
+        }
+        return matrix;
+    }
+}
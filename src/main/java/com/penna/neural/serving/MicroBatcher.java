@@ -0,0 +1,209 @@
+package com.penna.neural.serving;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.NeuralNetwork;
+
+/**
+ * Coalesces concurrent scoring requests into batched feedforward passes. The
+ * first request of a batch waits at most a configurable window for other
+ * requests to arrive; then all the waiting requests, up to a maximum batch
+ * size, are evaluated by a single feedforward of the network, and each request
+ * receives its own column of the output.
+ *
+ * Feedforward runs on a single dispatcher thread, so the network must not be
+ * trained while the batcher is running.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class MicroBatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(MicroBatcher.class.getName());
+
+    private final NeuralNetwork network;
+    private final int inputSize;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final Thread dispatcher;
+    // checked and cleared under the lock of the queue, so that no request is
+    // queued after close() has stopped the batcher
+    private volatile boolean running = true;
+    // time from submission to completion of each request
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    // number of batches of each size
+    private final AtomicLongArray batchSizes;
+
+    /**
+     * A scoring request waiting to be evaluated.
+     */
+    private static class Request {
+        final DoubleMatrix input;
+        final long submitTime;
+        final CompletableFuture<DoubleMatrix> output = new CompletableFuture<DoubleMatrix>();
+
+        Request(DoubleMatrix input) {
+            this.input = input;
+            this.submitTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Constructs a batcher and starts its dispatcher thread.
+     *
+     * @param network the network evaluating the requests
+     * @param windowMicros the maximum time, in microseconds, the first request
+     *            of a batch waits for other requests
+     * @param maxBatchSize the maximum number of requests in a batch
+     */
+    public MicroBatcher(NeuralNetwork network, long windowMicros, int maxBatchSize) {
+        if (windowMicros < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid batching parameters");
+        }
+        this.network = network;
+        this.inputSize = network.getInputSize();
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatchSize = maxBatchSize;
+        this.batchSizes = new AtomicLongArray(maxBatchSize + 1);
+        this.dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "micro-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Submits an input for evaluation. The method returns immediately.
+     *
+     * @param input the input, a column vector
+     * @return the future output of the network
+     */
+    public CompletableFuture<DoubleMatrix> submit(DoubleMatrix input) {
+        if (input.rows != inputSize || input.columns != 1) {
+            throw new IllegalArgumentException("Input must be a column vector of size "
+                    + inputSize);
+        }
+        Request request = new Request(input);
+        synchronized (queue) {
+            if (!running) {
+                throw new IllegalStateException("Batcher is closed");
+            }
+            queue.add(request);
+        }
+        return request.output;
+    }
+
+    /**
+     * Evaluates an input, waiting for the output.
+     *
+     * @param input the input, a column vector
+     * @return the output of the network
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the evaluation failed
+     */
+    public DoubleMatrix score(DoubleMatrix input) throws InterruptedException, ExecutionException {
+        return submit(input).get();
+    }
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<Request>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.submitTime + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue
+                            .poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                evaluate(batch);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Evaluates a batch with a single feedforward and completes its requests.
+     */
+    private void evaluate(List<Request> batch) {
+        int size = batch.size();
+        DoubleMatrix inputs = new DoubleMatrix(inputSize, size);
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(batch.get(i).input.data, 0, inputs.data, i * inputSize, inputSize);
+        }
+        try {
+            DoubleMatrix outputs = network.feedForward(inputs);
+            long now = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                Request request = batch.get(i);
+                request.output.complete(outputs.getColumn(i));
+                latencies.record(TimeUnit.NANOSECONDS.toMicros(now - request.submitTime));
+            }
+        } catch (RuntimeException re) {
+            LOGGER.severe("Batch evaluation failed: " + re);
+            for (Request request : batch) {
+                request.output.completeExceptionally(re);
+            }
+        }
+        batchSizes.incrementAndGet(size);
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns the number of evaluated batches of each size.
+     *
+     * @return an array whose i-th element is the number of batches of size i
+     */
+    public long[] getBatchSizeCounts() {
+        long[] counts = new long[batchSizes.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = batchSizes.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Stops accepting requests, evaluates the pending ones and stops the
+     * dispatcher thread.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        synchronized (queue) {
+            running = false;
+        }
+        dispatcher.join();
+        // requests left if the dispatcher was interrupted; no request can be
+        // queued any more
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.output.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+    }
+}
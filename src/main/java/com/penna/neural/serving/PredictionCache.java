@@ -0,0 +1,256 @@
+package com.penna.neural.serving;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.utils.RandomUtils;
+
+/**
+ * A bounded cache of network outputs, keyed by the network input. Inputs are
+ * looked up by a 64-bit hash of their contents, and matched by exact equality
+ * of their elements. Entries are evicted in least-recently-used order when the
+ * cache is full, and expire after a configurable time.
+ *
+ * The cache is split into independently locked stripes, so that concurrent
+ * lookups of different inputs rarely contend. The whole cache is invalidated
+ * as soon as the parameters of the network change.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class PredictionCache {
+
+    private final NeuralNetwork network;
+    private final Stripe[] stripes;
+    private final long ttlNanos;
+    // parameter version of the network the cached outputs were computed with
+    private volatile long version;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructs a cache for the outputs of a network.
+     *
+     * @param network the network whose outputs are cached
+     * @param maxSize the maximum number of cached outputs
+     * @param ttlMillis the time after which a cached output expires, zero for
+     *            no expiration
+     * @param numStripes the number of independently locked stripes, rounded
+     *            up to a power of two, and down to a power of two not larger
+     *            than the maximum size
+     */
+    public PredictionCache(NeuralNetwork network, int maxSize, long ttlMillis, int numStripes) {
+        if (maxSize < 1 || ttlMillis < 0 || numStripes < 1) {
+            throw new IllegalArgumentException("Invalid cache parameters");
+        }
+        int stripeCount = Integer.highestOneBit(numStripes - 1) << 1;
+        // a power of two, so that the stripe of a key is a mask of its hash
+        stripeCount = Integer.highestOneBit(Math.max(1, Math.min(stripeCount, maxSize)));
+        this.network = network;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.stripes = new Stripe[stripeCount];
+        int stripeSize = (maxSize + stripeCount - 1) / stripeCount;
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(stripeSize);
+        }
+        this.version = network.getParameterVersion();
+    }
+
+    /**
+     * Returns the output of the network for an input, from the cache if
+     * possible.
+     *
+     * @param input the input, a column vector
+     * @return the output of the network
+     */
+    public DoubleMatrix predict(DoubleMatrix input) {
+        DoubleMatrix output = get(input);
+        if (output == null) {
+            long outputVersion = network.getParameterVersion();
+            output = network.feedForward(input);
+            put(input, output, outputVersion);
+        }
+        return output;
+    }
+
+    /**
+     * Looks up the cached output for an input.
+     *
+     * @param input the input
+     * @return a copy of the cached output, or null if the output is not cached
+     */
+    public DoubleMatrix get(DoubleMatrix input) {
+        invalidateIfChanged();
+        Key key = new Key(input.data, hash(input.data));
+        CachedOutput entry = stripeOf(key).get(key, System.nanoTime());
+        if (entry == null || entry.version != version) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.output.dup();
+    }
+
+    /**
+     * Stores the output computed for an input. The output is discarded if the
+     * network parameters changed since it was computed.
+     *
+     * @param input the input
+     * @param output the output of the network for the input
+     * @param outputVersion the parameter version of the network when the
+     *            output was computed, as returned by
+     *            {@link NeuralNetwork#getParameterVersion()} before the
+     *            computation
+     */
+    public void put(DoubleMatrix input, DoubleMatrix output, long outputVersion) {
+        invalidateIfChanged();
+        if (outputVersion != version) {
+            return;
+        }
+        Key key = new Key(input.data.clone(), hash(input.data));
+        stripeOf(key).put(key, new CachedOutput(output.dup(), outputVersion, System.nanoTime()));
+    }
+
+    /**
+     * Removes all the cached outputs.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    private void invalidateIfChanged() {
+        long current = network.getParameterVersion();
+        if (current != version) {
+            synchronized (this) {
+                if (current != version) {
+                    clear();
+                    version = current;
+                }
+            }
+        }
+    }
+
+    private Stripe stripeOf(Key key) {
+        return stripes[(int) (key.hash >>> 32) & (stripes.length - 1)];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private static long hash(double[] data) {
+        long hash = data.length;
+        for (int i = 0; i < data.length; i++) {
+            hash = (hash ^ Double.doubleToLongBits(data[i])) * 0x9E3779B97F4A7C15L;
+        }
+        return RandomUtils.mix(hash);
+    }
+
+    /**
+     * Cache key: the elements of an input and their hash.
+     */
+    private static class Key {
+        final double[] data;
+        final long hash;
+
+        Key(double[] data, long hash) {
+            this.data = data;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && Arrays.equals(data, key.data);
+        }
+    }
+
+    /**
+     * Cached value: the output of an input and when it was computed.
+     */
+    private static class CachedOutput {
+        final DoubleMatrix output;
+        // parameter version the output was computed with
+        final long version;
+        final long insertTime;
+
+        CachedOutput(DoubleMatrix output, long version, long insertTime) {
+            this.output = output;
+            this.version = version;
+            this.insertTime = insertTime;
+        }
+    }
+
+    /**
+     * A least-recently-used map guarded by its own lock.
+     */
+    private class Stripe {
+        private final LinkedHashMap<Key, CachedOutput> entries;
+
+        @SuppressWarnings("serial")
+        Stripe(final int maxSize) {
+            entries = new LinkedHashMap<Key, CachedOutput>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CachedOutput> eldest) {
+                    if (size() > maxSize) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized CachedOutput get(Key key, long now) {
+            CachedOutput entry = entries.get(key);
+            if (entry != null && ttlNanos > 0 && now - entry.insertTime > ttlNanos) {
+                entries.remove(key);
+                evictions.increment();
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized void put(Key key, CachedOutput entry) {
+            entries.put(key, entry);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
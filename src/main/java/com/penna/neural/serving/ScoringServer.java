@@ -0,0 +1,238 @@
+package com.penna.neural.serving;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.Checkpoint;
+import com.penna.neural.core.NeuralNetwork;
+import com.penna.neural.exceptions.NetworkInitializationException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server scoring inputs with a neural network. The server
+ * listens on the loopback interface and exposes two endpoints:
+ * <ul>
+ * <li><code>POST /score</code>: the body is the input vector, as numbers
+ * separated by commas or white spaces; the response is the output vector, in
+ * the same format.</li>
+ * <li><code>GET /metrics</code>: latency percentiles and batch size
+ * histogram, one metric per line.</li>
+ * </ul>
+ * Concurrent requests are coalesced into batched feedforward passes by a
+ * {@link MicroBatcher}.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class ScoringServer {
+
+    private static final Logger LOGGER = Logger.getLogger(ScoringServer.class.getName());
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MicroBatcher batcher;
+    private final NeuralNetwork network;
+    // cache of outputs in front of the batcher, null if caching is off
+    private volatile PredictionCache cache;
+
+    /**
+     * Constructs a server. The server is not started.
+     *
+     * @param network the network scoring the inputs
+     * @param port the port to listen on, on the loopback interface
+     * @param windowMicros the maximum time, in microseconds, a request waits
+     *            for other requests to be batched with
+     * @param maxBatchSize the maximum number of requests in a batch
+     * @throws IOException if the server cannot listen on the port
+     */
+    public ScoringServer(NeuralNetwork network, int port, long windowMicros, int maxBatchSize)
+            throws IOException {
+        this.network = network;
+        this.batcher = new MicroBatcher(network, windowMicros, maxBatchSize);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                port), 0);
+        // connection handlers mostly wait for their batch to be evaluated
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/score", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleScore(exchange);
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMetrics(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Scoring server listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops the server, waiting for pending requests to complete.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        server.stop(1);
+        batcher.close();
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public MicroBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * Sets a cache of outputs, looked up before requests are batched.
+     *
+     * @param cache the cache of the served network, or null to disable caching
+     */
+    public void setCache(PredictionCache cache) {
+        this.cache = cache;
+    }
+
+    private void handleScore(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Use POST\n");
+            return;
+        }
+        DoubleMatrix input;
+        try {
+            input = parseVector(readBody(exchange.getRequestBody()));
+        } catch (NumberFormatException nfe) {
+            respond(exchange, 400, "Invalid input: " + nfe.getMessage() + "\n");
+            return;
+        }
+        try {
+            PredictionCache currentCache = cache;
+            DoubleMatrix output = currentCache == null ? null : currentCache.get(input);
+            if (output == null) {
+                long version = network.getParameterVersion();
+                output = batcher.score(input);
+                if (currentCache != null) {
+                    currentCache.put(input, output, version);
+                }
+            }
+            respond(exchange, 200, formatVector(output));
+        } catch (IllegalArgumentException iae) {
+            respond(exchange, 400, iae.getMessage() + "\n");
+        } catch (ExecutionException ee) {
+            respond(exchange, 500, "Scoring failed: " + ee.getCause() + "\n");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted\n");
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        LatencyHistogram latencies = batcher.getLatencies();
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests ").append(latencies.getCount()).append('\n');
+        sb.append("latency_p50_us ").append(latencies.getPercentile(50)).append('\n');
+        sb.append("latency_p99_us ").append(latencies.getPercentile(99)).append('\n');
+        PredictionCache currentCache = cache;
+        if (currentCache != null) {
+            sb.append("cache_hits ").append(currentCache.getHits()).append('\n');
+            sb.append("cache_misses ").append(currentCache.getMisses()).append('\n');
+            sb.append("cache_evictions ").append(currentCache.getEvictions()).append('\n');
+        }
+        long[] batchSizes = batcher.getBatchSizeCounts();
+        for (int size = 1; size < batchSizes.length; size++) {
+            if (batchSizes[size] > 0) {
+                sb.append("batch_size ").append(size).append(' ').append(batchSizes[size])
+                        .append('\n');
+            }
+        }
+        respond(exchange, 200, sb.toString());
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static DoubleMatrix parseVector(String text) {
+        String[] tokens = text.trim().split("[,\\s]+");
+        double[] values = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            values[i] = Double.parseDouble(tokens[i]);
+        }
+        return new DoubleMatrix(values);
+    }
+
+    private static String formatVector(DoubleMatrix vector) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(vector.data[i]);
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Serves a network restored from a checkpoint.
+     *
+     * @param argv checkpoint file, port, and optionally batching window in
+     *            microseconds, maximum batch size and cache size
+     * @throws IOException if the checkpoint cannot be read or the port cannot
+     *             be used
+     * @throws NetworkInitializationException if the checkpoint is not valid
+     */
+    public static void main(String[] argv) throws IOException, NetworkInitializationException {
+        if (argv.length < 2) {
+            System.out.println("usage: ScoringServer <checkpoint file> <port> [window micros]"
+                    + " [max batch size] [cache size]");
+            System.exit(-1);
+        }
+        NeuralNetwork network = new NeuralNetwork(Checkpoint.read(new File(argv[0])));
+        network.freeze();
+        int port = Integer.parseInt(argv[1]);
+        long windowMicros = argv.length > 2 ? Long.parseLong(argv[2]) : 500;
+        int maxBatchSize = argv.length > 3 ? Integer.parseInt(argv[3]) : 64;
+        ScoringServer server = new ScoringServer(network, port, windowMicros, maxBatchSize);
+        if (argv.length > 4) {
+            server.setCache(new PredictionCache(network, Integer.parseInt(argv[4]), 0, 16));
+        }
+        server.start();
+    }
+}
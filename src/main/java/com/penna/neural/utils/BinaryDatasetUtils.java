@@ -0,0 +1,324 @@
+package com.penna.neural.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.core.Dataset;
+import com.penna.neural.core.Instance;
+import com.penna.neural.exceptions.NoLabelException;
+
+/**
+ * This class contains utility methods to cache a dataset in a compact binary
+ * file, which is much faster to load than the original dataset files. The
+ * file holds a header followed by the features of all the instances and then
+ * by their labels, as contiguous little-endian arrays. Features can be stored
+ * in single precision, halving the size of the file, and can be min-max
+ * normalized to [0, 1] before being stored; in this case the minimum and
+ * maximum of each feature are stored as well, to normalize other data in the
+ * same way.
+ *
+ * The cache is read by memory mapping the file and bulk copying the arrays
+ * into the feature and label matrixes of the instances.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class BinaryDatasetUtils {
+
+    public static final Logger LOGGER = Logger.getLogger(BinaryDatasetUtils.class.getName());
+
+    private static final int MAGIC_NUMBER = 0x4e4e4443;
+    private static final int VERSION = 1;
+    private static final int FLAG_SINGLE_PRECISION = 1;
+    private static final int FLAG_NORMALIZED = 2;
+    private static final int HEADER_SIZE = 6 * 4;
+    // size of the buffer used to write, and of the regions mapped to read
+    private static final int BLOCK_SIZE = 1 << 24;
+
+    /**
+     * Writes a dataset to a binary cache file. Either all or none of the
+     * instances must be labelled, and all the instances must have the same
+     * number of features and labels. The file is written to a temporary file
+     * first, and then renamed, so that a partially written cache is never
+     * read.
+     *
+     * @param dataset the dataset to cache
+     * @param file path of the cache file
+     * @param singlePrecision true to store features as 32-bit floats
+     * @param normalize true to min-max normalize each feature to [0, 1]
+     * @throws IOException if the file cannot be written
+     * @throws NoLabelException if the first instance is labelled but others
+     *             are not
+     */
+    public static void writeCache(Dataset dataset, String file, boolean singlePrecision,
+            boolean normalize) throws IOException, NoLabelException {
+        int numInstances = dataset.size();
+        if (numInstances == 0) {
+            throw new IllegalArgumentException("Cannot cache an empty dataset");
+        }
+        Instance first = dataset.getInstance(0);
+        int numFeatures = first.getFeatures().length;
+        int numLabels = first.isLabelled() ? first.getLabels().length : 0;
+        double[] mins = null;
+        double[] maxs = null;
+        if (normalize) {
+            mins = new double[numFeatures];
+            maxs = new double[numFeatures];
+            computeRanges(dataset, mins, maxs);
+        }
+        int flags = (singlePrecision ? FLAG_SINGLE_PRECISION : 0) | (normalize ? FLAG_NORMALIZED
+                : 0);
+
+        File target = new File(file);
+        File tmp = new File(file + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC_NUMBER).putInt(VERSION).putInt(flags).putInt(numInstances)
+                    .putInt(numFeatures).putInt(numLabels);
+            if (normalize) {
+                for (int j = 0; j < numFeatures; j++) {
+                    buffer = ensureCapacity(channel, buffer, 16);
+                    buffer.putDouble(mins[j]).putDouble(maxs[j]);
+                }
+            }
+            for (Instance instance : dataset) {
+                double[] features = instance.getFeatures().data;
+                if (features.length != numFeatures) {
+                    throw new IllegalArgumentException("Instances have different numbers of"
+                            + " features");
+                }
+                for (int j = 0; j < numFeatures; j++) {
+                    buffer = ensureCapacity(channel, buffer, 8);
+                    double value = features[j];
+                    if (normalize) {
+                        value = maxs[j] > mins[j] ? (value - mins[j]) / (maxs[j] - mins[j]) : 0;
+                    }
+                    if (singlePrecision) {
+                        buffer.putFloat((float) value);
+                    } else {
+                        buffer.putDouble(value);
+                    }
+                }
+            }
+            if (numLabels > 0) {
+                for (Instance instance : dataset) {
+                    // throws if the instance is not labelled
+                    double[] labels = instance.getLabels().data;
+                    if (labels.length != numLabels) {
+                        throw new IllegalArgumentException("Instances have different numbers"
+                                + " of labels");
+                    }
+                    for (int j = 0; j < numLabels; j++) {
+                        buffer = ensureCapacity(channel, buffer, 8);
+                        buffer.putDouble(labels[j]);
+                    }
+                }
+            } else {
+                for (Instance instance : dataset) {
+                    if (instance.isLabelled()) {
+                        throw new IllegalArgumentException("Only some of the instances are"
+                                + " labelled");
+                    }
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            raf.close();
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Cached " + numInstances + " instances in " + file);
+    }
+
+    /**
+     * Reads a dataset from a binary cache file.
+     *
+     * @param file path of the cache file
+     * @return a dataset structure containing the cached dataset
+     * @throws IOException if the file cannot be read or is not a valid cache
+     */
+    public static Dataset readCache(String file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            Header header = readHeader(channel, file);
+            int featureSize = header.singlePrecision ? 4 : 8;
+            long expectedSize = header.dataOffset() + (long) header.numInstances
+                    * (header.numFeatures * featureSize + header.numLabels * 8);
+            if (channel.size() != expectedSize) {
+                throw new IOException(file + " is truncated or corrupted");
+            }
+
+            List<Instance> instances = new ArrayList<Instance>(header.numInstances);
+            DoubleMatrix[] features = new DoubleMatrix[header.numInstances];
+            float[] floats = header.singlePrecision ? new float[header.numFeatures] : null;
+            long position = header.dataOffset();
+            int instancesPerBlock = Math.max(1, BLOCK_SIZE / Math.max(1, header.numFeatures
+                    * featureSize));
+            for (int start = 0; start < header.numInstances; start += instancesPerBlock) {
+                int end = Math.min(start + instancesPerBlock, header.numInstances);
+                long length = (long) (end - start) * header.numFeatures * featureSize;
+                ByteBuffer block = map(channel, position, length);
+                for (int i = start; i < end; i++) {
+                    features[i] = new DoubleMatrix(header.numFeatures, 1);
+                    if (header.singlePrecision) {
+                        block.asFloatBuffer().get(floats);
+                        for (int j = 0; j < floats.length; j++) {
+                            features[i].data[j] = floats[j];
+                        }
+                    } else {
+                        block.asDoubleBuffer().get(features[i].data);
+                    }
+                    block.position(block.position() + header.numFeatures * featureSize);
+                }
+                position += length;
+            }
+            if (header.numLabels == 0) {
+                for (int i = 0; i < header.numInstances; i++) {
+                    instances.add(new Instance(features[i]));
+                }
+            } else {
+                int instancesPerLabelBlock = Math.max(1, BLOCK_SIZE / (header.numLabels * 8));
+                for (int start = 0; start < header.numInstances; start += instancesPerLabelBlock) {
+                    int end = Math.min(start + instancesPerLabelBlock, header.numInstances);
+                    long length = (long) (end - start) * header.numLabels * 8;
+                    ByteBuffer block = map(channel, position, length);
+                    for (int i = start; i < end; i++) {
+                        DoubleMatrix labels = new DoubleMatrix(header.numLabels, 1);
+                        block.asDoubleBuffer().get(labels.data);
+                        block.position(block.position() + header.numLabels * 8);
+                        instances.add(new Instance(features[i], labels));
+                    }
+                    position += length;
+                }
+            }
+            LOGGER.info("Read " + header.numInstances + " cached instances from " + file);
+            return new Dataset(instances);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the minimum and maximum of each feature of a normalized cache, as
+     * computed on the original dataset.
+     *
+     * @param file path of the cache file
+     * @return an array holding the minimums and the maximums of the features,
+     *         or null if the cached features are not normalized
+     * @throws IOException if the file cannot be read or is not a valid cache
+     */
+    public static double[][] readCacheRanges(String file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            Header header = readHeader(channel, file);
+            if (!header.normalized) {
+                return null;
+            }
+            ByteBuffer block = map(channel, HEADER_SIZE, (long) header.numFeatures * 16);
+            double[][] ranges = new double[2][header.numFeatures];
+            for (int j = 0; j < header.numFeatures; j++) {
+                ranges[0][j] = block.getDouble();
+                ranges[1][j] = block.getDouble();
+            }
+            return ranges;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The header of a cache file.
+     */
+    private static class Header {
+        boolean singlePrecision;
+        boolean normalized;
+        int numInstances;
+        int numFeatures;
+        int numLabels;
+
+        long dataOffset() {
+            return HEADER_SIZE + (normalized ? (long) numFeatures * 16 : 0);
+        }
+    }
+
+    private static Header readHeader(FileChannel channel, String file) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            throw new IOException(file + " is not a dataset cache");
+        }
+        ByteBuffer buffer = map(channel, 0, HEADER_SIZE);
+        if (buffer.getInt() != MAGIC_NUMBER) {
+            throw new IOException(file + " is not a dataset cache");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + " has unsupported version " + version);
+        }
+        int flags = buffer.getInt();
+        Header header = new Header();
+        header.singlePrecision = (flags & FLAG_SINGLE_PRECISION) != 0;
+        header.normalized = (flags & FLAG_NORMALIZED) != 0;
+        header.numInstances = buffer.getInt();
+        header.numFeatures = buffer.getInt();
+        header.numLabels = buffer.getInt();
+        if (header.numInstances < 0 || header.numFeatures < 1 || header.numLabels < 0) {
+            throw new IOException(file + " has an invalid header");
+        }
+        return header;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Flushes the buffer to the channel if it has less than the given number
+     * of free bytes.
+     */
+    private static ByteBuffer ensureCapacity(FileChannel channel, ByteBuffer buffer, int bytes)
+            throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private static void computeRanges(Dataset dataset, double[] mins, double[] maxs) {
+        for (int j = 0; j < mins.length; j++) {
+            mins[j] = Double.POSITIVE_INFINITY;
+            maxs[j] = Double.NEGATIVE_INFINITY;
+        }
+        for (Instance instance : dataset) {
+            double[] features = instance.getFeatures().data;
+            for (int j = 0; j < Math.min(features.length, mins.length); j++) {
+                mins[j] = Math.min(mins[j], features[j]);
+                maxs[j] = Math.max(maxs[j], features[j]);
+            }
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package com.penna.neural.utils;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.logging.Logger;
 import org.jblas.DoubleMatrix;
 import com.penna.neural.core.Dataset;
 import com.penna.neural.core.Instance;
+import com.penna.neural.exceptions.NoLabelException;
 
 /**
  * This class contains utility methods for the MNIST dataset
@@ -100,6 +102,40 @@ public class MnistUtils {
         }
     }
 
+    /**
+     * Reads the MNIST dataset through a binary cache. If the cache file exists
+     * and is newer than the MNIST files, the dataset is read from it;
+     * otherwise the MNIST files are read and the cache is written, so that the
+     * next read is fast. Pixels are cached in single precision, which
+     * represents them exactly.
+     * 
+     * @param labelFile path of file containing labels of the dataset instances
+     * @param imageFile path of file containing features of the dataset
+     *            instances
+     * @param cacheFile path of the cache file
+     * @return a dataset structure containing the read dataset
+     * @throws IOException if a path is not found
+     * @see BinaryDatasetUtils
+     */
+    public static Dataset readMNISTdata(String labelFile, String imageFile, String cacheFile)
+            throws IOException {
+        File cache = new File(cacheFile);
+        if (cache.lastModified() > new File(labelFile).lastModified()
+                && cache.lastModified() > new File(imageFile).lastModified()) {
+            return BinaryDatasetUtils.readCache(cacheFile);
+        }
+        Dataset dataset = readMNISTdata(labelFile, imageFile);
+        try {
+            BinaryDatasetUtils.writeCache(dataset, cacheFile, true, false);
+        } catch (NoLabelException nle) {
+            // all MNIST instances are labelled
+            throw new IllegalStateException(nle);
+        } catch (IOException ioe) {
+            LOGGER.warning("Could not write cache " + cacheFile + ": " + ioe);
+        }
+        return dataset;
+    }
+
     /**
      * Prints an image from its matrix representation. Each element of the
      * matrix is the color value for the respective pixel of the image.
@@ -0,0 +1,66 @@
+package com.penna.neural.utils;
+
+import java.util.Random;
+import org.jblas.DoubleMatrix;
+
+/**
+ * This class contains utility methods to draw random values from explicitly
+ * seeded generators, so that experiments can be repeated exactly.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class RandomUtils {
+
+    // golden ratio increment of the SplitMix64 generator
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Creates a matrix whose elements are drawn from a standard normal
+     * distribution.
+     *
+     * @param rows number of rows of the matrix
+     * @param columns number of columns of the matrix
+     * @param random the generator to draw values from
+     * @return the random matrix
+     */
+    public static DoubleMatrix randn(int rows, int columns, Random random) {
+        DoubleMatrix matrix = new DoubleMatrix(rows, columns);
+        for (int i = 0; i < matrix.length; i++) {
+            matrix.data[i] = random.nextGaussian();
+        }
+        return matrix;
+    }
+
+    /**
+     * Derives independent generators from a single seed, one for each worker
+     * of a parallel computation. The same seed and number of workers always
+     * yield the same generators, and the generators of different workers do
+     * not share their sequence of values.
+     *
+     * @param seed the seed of the computation
+     * @param numWorkers number of generators to derive
+     * @return one generator for each worker
+     */
+    public static Random[] split(long seed, int numWorkers) {
+        Random[] randoms = new Random[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            randoms[i] = new Random(mix(seed + (i + 1) * GOLDEN_GAMMA));
+        }
+        return randoms;
+    }
+
+    /**
+     * Scrambles the bits of a value, with the finalizer of the SplitMix64
+     * generator. Close inputs are mapped to unrelated outputs.
+     *
+     * @param value the value to scramble
+     * @return the scrambled value
+     */
+    public static long mix(long value) {
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
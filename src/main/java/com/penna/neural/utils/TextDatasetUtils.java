@@ -0,0 +1,503 @@
+package com.penna.neural.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import org.jblas.DoubleMatrix;
+import com.penna.neural.backends.ExecutionConfig;
+import com.penna.neural.core.Dataset;
+import com.penna.neural.core.Instance;
+
+/**
+ * This class contains utility methods to read datasets from CSV and LibSVM
+ * text files. Files are split into chunks of whole lines, which are memory
+ * mapped and parsed in parallel; numbers are parsed directly from the mapped
+ * bytes, without building intermediate strings. The order of the instances is
+ * the order of the lines in the file.
+ *
+ * Labels are read as class indexes and converted to one-hot label matrixes,
+ * as for the MNIST dataset. With a single class, the label value itself is
+ * used as a 1x1 label matrix.
+ *
+ * @author mpennacchiotti
+ *
+ */
+public class TextDatasetUtils {
+
+    public static final Logger LOGGER = Logger.getLogger(TextDatasetUtils.class.getName());
+
+    // chunks are kept well below the 2GB limit of a mapped buffer
+    private static final long MAX_CHUNK_SIZE = 256L << 20;
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Reads a dataset from a CSV file. Fields are separated by commas, and
+     * every line holds the same number of fields. Empty lines are skipped.
+     *
+     * @param file path of the CSV file
+     * @param labelColumn index of the field holding the class of the
+     *            instance, -1 if instances are unlabelled
+     * @param numClasses number of classes, i.e. rows of the label matrixes
+     * @param hasHeader true if the first line of the file is a header to skip
+     * @return a dataset structure containing the read dataset
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static Dataset readCSV(String file, final int labelColumn, final int numClasses,
+            boolean hasHeader) throws IOException {
+        LOGGER.info("Reading CSV dataset " + file);
+        List<List<Instance>> chunks = parseChunks(file, hasHeader, new ChunkParser<Instance>() {
+            public List<Instance> parse(ByteCursor cursor) throws IOException {
+                return parseCSVChunk(cursor, labelColumn, numClasses);
+            }
+        });
+        List<Instance> instances = new ArrayList<Instance>();
+        for (List<Instance> chunk : chunks) {
+            instances.addAll(chunk);
+        }
+        checkSameNumFeatures(instances);
+        LOGGER.info("Completed: read " + instances.size() + " instances");
+        return new Dataset(instances);
+    }
+
+    /**
+     * Reads a dataset from a LibSVM file. Each line holds the class of the
+     * instance followed by the non-zero features, as
+     * <code>index:value</code> pairs with 1-based indexes. Features are stored
+     * sparsely while parsing and expanded to dense feature matrixes at the
+     * end.
+     *
+     * @param file path of the LibSVM file
+     * @param numFeatures number of features, or 0 to use the largest index
+     *            found in the file
+     * @param numClasses number of classes, i.e. rows of the label matrixes
+     * @return a dataset structure containing the read dataset
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static Dataset readLibSVM(String file, int numFeatures, final int numClasses)
+            throws IOException {
+        LOGGER.info("Reading LibSVM dataset " + file);
+        List<List<SparseRow>> chunks = parseChunks(file, false, new ChunkParser<SparseRow>() {
+            public List<SparseRow> parse(ByteCursor cursor) throws IOException {
+                return parseLibSVMChunk(cursor);
+            }
+        });
+        int maxIndex = 0;
+        for (List<SparseRow> chunk : chunks) {
+            for (SparseRow row : chunk) {
+                if (row.indexes.length > 0) {
+                    maxIndex = Math.max(maxIndex, row.indexes[row.indexes.length - 1]);
+                }
+            }
+        }
+        if (numFeatures <= 0) {
+            numFeatures = maxIndex;
+        } else if (maxIndex > numFeatures) {
+            throw new IOException("Feature index " + maxIndex + " exceeds the " + numFeatures
+                    + " features");
+        }
+        List<Instance> instances = new ArrayList<Instance>();
+        for (List<SparseRow> chunk : chunks) {
+            for (SparseRow row : chunk) {
+                DoubleMatrix features = new DoubleMatrix(numFeatures, 1);
+                for (int i = 0; i < row.indexes.length; i++) {
+                    features.data[row.indexes[i] - 1] = row.values[i];
+                }
+                instances.add(new Instance(features, toLabels(row.label, numClasses)));
+            }
+        }
+        LOGGER.info("Completed: read " + instances.size() + " instances");
+        return new Dataset(instances);
+    }
+
+    /**
+     * Parses the lines of a chunk of a file.
+     */
+    private interface ChunkParser<T> {
+        List<T> parse(ByteCursor cursor) throws IOException;
+    }
+
+    /**
+     * Splits a file into chunks of whole lines and parses them in parallel,
+     * with the workers of the default {@link ExecutionConfig}.
+     *
+     * @return the parsed items of each chunk, in file order
+     */
+    private static <T> List<List<T>> parseChunks(String file, boolean skipFirstLine,
+            final ChunkParser<T> parser) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ExecutionConfig config = ExecutionConfig.getDefault();
+            int numThreads = config.getNumWorkers();
+            long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size
+                    / (4 * numThreads) + 1));
+            List<Long> boundaries = new ArrayList<Long>();
+            long start = skipFirstLine ? nextLineStart(channel, 1, size) : 0;
+            boundaries.add(start);
+            while (start < size) {
+                start = nextLineStart(channel, Math.min(start + chunkSize, size), size);
+                boundaries.add(start);
+            }
+            List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>();
+            for (int i = 0; i + 1 < boundaries.size(); i++) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        boundaries.get(i), boundaries.get(i + 1) - boundaries.get(i));
+                final long offset = boundaries.get(i);
+                tasks.add(new Callable<List<T>>() {
+                    public List<T> call() throws IOException {
+                        return parser.parse(new ByteCursor(buffer, offset));
+                    }
+                });
+            }
+            try {
+                return config.invokeAll(tasks);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + file, ie);
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof IOException) {
+                    throw (IOException) ee.getCause();
+                }
+                throw new IOException("Failed to read " + file, ee.getCause());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the offset of the first line starting at or after the given
+     * position, or the file size if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size)
+            throws IOException {
+        if (position == 0 || position >= size) {
+            return Math.min(position, size);
+        }
+        // the line starts here if the previous byte ends a line
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position - 1, Math
+                .min(size - position + 1, 1 << 16));
+        while (true) {
+            while (buffer.hasRemaining()) {
+                if (buffer.get() == '\n') {
+                    return position - 1 + buffer.position();
+                }
+            }
+            position += buffer.limit() - 1;
+            if (position >= size) {
+                return size;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position - 1, Math.min(size
+                    - position + 1, 1 << 16));
+        }
+    }
+
+    private static List<Instance> parseCSVChunk(ByteCursor cursor, int labelColumn,
+            int numClasses) throws IOException {
+        List<Instance> instances = new ArrayList<Instance>();
+        double[] fields = new double[64];
+        while (cursor.skipEmptyLines()) {
+            int numFields = 0;
+            while (true) {
+                if (numFields == fields.length) {
+                    fields = Arrays.copyOf(fields, 2 * numFields);
+                }
+                fields[numFields++] = cursor.parseDouble();
+                cursor.skipBlanks();
+                if (!cursor.skip(',')) {
+                    break;
+                }
+            }
+            cursor.endLine();
+            if (labelColumn < 0) {
+                instances.add(new Instance(new DoubleMatrix(Arrays.copyOf(fields, numFields))));
+                continue;
+            }
+            if (labelColumn >= numFields) {
+                throw cursor.error("missing label field");
+            }
+            double[] features = new double[numFields - 1];
+            System.arraycopy(fields, 0, features, 0, labelColumn);
+            System.arraycopy(fields, labelColumn + 1, features, labelColumn, numFields
+                    - labelColumn - 1);
+            instances.add(new Instance(new DoubleMatrix(features), toLabels(fields[labelColumn],
+                    numClasses)));
+        }
+        return instances;
+    }
+
+    /**
+     * The label and the non-zero features of a LibSVM line.
+     */
+    private static class SparseRow {
+        final double label;
+        final int[] indexes;
+        final double[] values;
+
+        SparseRow(double label, int[] indexes, double[] values) {
+            this.label = label;
+            this.indexes = indexes;
+            this.values = values;
+        }
+    }
+
+    private static List<SparseRow> parseLibSVMChunk(ByteCursor cursor) throws IOException {
+        List<SparseRow> rows = new ArrayList<SparseRow>();
+        int[] indexes = new int[64];
+        double[] values = new double[64];
+        while (cursor.skipEmptyLines()) {
+            double label = cursor.parseDouble();
+            int numValues = 0;
+            while (cursor.skipBlanks() && !cursor.atLineEnd()) {
+                if (numValues == indexes.length) {
+                    indexes = Arrays.copyOf(indexes, 2 * numValues);
+                    values = Arrays.copyOf(values, 2 * numValues);
+                }
+                int index = cursor.parseInt();
+                if (index < 1 || (numValues > 0 && index <= indexes[numValues - 1])) {
+                    throw cursor.error("feature indexes must be positive and increasing");
+                }
+                if (!cursor.skip(':')) {
+                    throw cursor.error("expected ':'");
+                }
+                indexes[numValues] = index;
+                values[numValues] = cursor.parseDouble();
+                numValues++;
+            }
+            cursor.endLine();
+            rows.add(new SparseRow(label, Arrays.copyOf(indexes, numValues), Arrays.copyOf(
+                    values, numValues)));
+        }
+        return rows;
+    }
+
+    private static DoubleMatrix toLabels(double label, int numClasses) throws IOException {
+        if (numClasses == 1) {
+            return new DoubleMatrix(new double[] { label });
+        }
+        int labelIdx = (int) label;
+        if (labelIdx != label || labelIdx < 0 || labelIdx >= numClasses) {
+            throw new IOException("Label " + label + " is not a class in [0, " + numClasses
+                    + ")");
+        }
+        DoubleMatrix labelMatrix = DoubleMatrix.zeros(numClasses, 1);
+        labelMatrix.put(labelIdx, 1);
+        return labelMatrix;
+    }
+
+    private static void checkSameNumFeatures(List<Instance> instances) throws IOException {
+        for (int i = 1; i < instances.size(); i++) {
+            if (instances.get(i).getFeatures().rows != instances.get(0).getFeatures().rows) {
+                throw new IOException("Instance " + i + " has "
+                        + instances.get(i).getFeatures().rows + " features instead of "
+                        + instances.get(0).getFeatures().rows);
+            }
+        }
+    }
+
+    /**
+     * Reads numbers from the mapped bytes of a chunk.
+     */
+    private static class ByteCursor {
+        private final MappedByteBuffer buffer;
+        // offset of the chunk in the file, for error messages
+        private final long offset;
+        private final int limit;
+        private int pos;
+
+        ByteCursor(MappedByteBuffer buffer, long offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.limit = buffer.limit();
+        }
+
+        /**
+         * Skips blank and empty lines.
+         *
+         * @return true if there is a line to read
+         */
+        boolean skipEmptyLines() {
+            while (pos < limit) {
+                byte b = buffer.get(pos);
+                if (b != '\n' && b != '\r' && b != ' ' && b != '\t') {
+                    return true;
+                }
+                pos++;
+            }
+            return false;
+        }
+
+        /**
+         * Skips spaces and tabs.
+         *
+         * @return true if the chunk has more bytes
+         */
+        boolean skipBlanks() {
+            while (pos < limit && (buffer.get(pos) == ' ' || buffer.get(pos) == '\t')) {
+                pos++;
+            }
+            return pos < limit;
+        }
+
+        boolean atLineEnd() {
+            return pos >= limit || buffer.get(pos) == '\n' || buffer.get(pos) == '\r';
+        }
+
+        boolean skip(char c) {
+            if (pos < limit && buffer.get(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void endLine() throws IOException {
+            skipBlanks();
+            if (!atLineEnd()) {
+                throw error("unexpected character '" + (char) buffer.get(pos) + "'");
+            }
+        }
+
+        int parseInt() throws IOException {
+            int start = pos;
+            long value = 0;
+            while (pos < limit && isDigit(buffer.get(pos)) && value <= Integer.MAX_VALUE) {
+                value = value * 10 + (buffer.get(pos++) - '0');
+            }
+            if (pos == start || value > Integer.MAX_VALUE) {
+                throw error("invalid integer");
+            }
+            return (int) value;
+        }
+
+        /**
+         * Parses a decimal number. Numbers whose digits fit in a double are
+         * computed directly, with a single correctly rounded operation;
+         * others fall back to {@link Double#parseDouble(String)}.
+         */
+        double parseDouble() throws IOException {
+            skipBlanks();
+            int start = pos;
+            boolean negative = false;
+            if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negative = buffer.get(pos++) == '-';
+            }
+            long mantissa = 0;
+            int numDigits = 0;
+            int exponent = 0;
+            boolean exact = true;
+            int digitsStart = pos;
+            boolean fraction = false;
+            for (; pos < limit; pos++) {
+                byte b = buffer.get(pos);
+                if (b == '.' && !fraction) {
+                    fraction = true;
+                    continue;
+                }
+                if (!isDigit(b)) {
+                    break;
+                }
+                // 18 significant digits always fit in a long
+                exact &= numDigits < 18;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa > 0) {
+                    numDigits++;
+                }
+                if (fraction) {
+                    exponent--;
+                }
+            }
+            if (pos == digitsStart || (pos == digitsStart + 1 && buffer.get(digitsStart) == '.')) {
+                pos = start;
+                return parseSpecial();
+            }
+            if (pos < limit && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+                pos++;
+                boolean negativeExponent = false;
+                if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                    negativeExponent = buffer.get(pos++) == '-';
+                }
+                int exponentStart = pos;
+                int explicitExponent = 0;
+                while (pos < limit && isDigit(buffer.get(pos))) {
+                    explicitExponent = Math.min(explicitExponent * 10 + buffer.get(pos++) - '0',
+                            100000);
+                }
+                if (pos == exponentStart) {
+                    throw error("invalid number");
+                }
+                exponent += negativeExponent ? -explicitExponent : explicitExponent;
+            }
+            if (exact && mantissa <= (1L << 53) && exponent >= -22 && exponent <= 22) {
+                // both operands are exact doubles, so the result is correctly
+                // rounded
+                double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa
+                        / POWERS_OF_TEN[-exponent];
+                return negative ? -value : value;
+            }
+            return slowParse(start);
+        }
+
+        /**
+         * Parses NaN and infinities, as written by Java.
+         */
+        private double parseSpecial() throws IOException {
+            int start = pos;
+            while (pos < limit && buffer.get(pos) != ',' && buffer.get(pos) != ' '
+                    && buffer.get(pos) != '\t' && buffer.get(pos) != '\n'
+                    && buffer.get(pos) != '\r') {
+                pos++;
+            }
+            if (pos == start) {
+                throw error("missing number");
+            }
+            String token = token(start);
+            if (token.endsWith("NaN") || token.endsWith("Infinity")) {
+                return slowParse(start);
+            }
+            throw error("invalid number '" + token + "'");
+        }
+
+        private double slowParse(int start) throws IOException {
+            String token = token(start);
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException nfe) {
+                throw error("invalid number '" + token + "'");
+            }
+        }
+
+        private String token(int start) {
+            byte[] bytes = new byte[pos - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        IOException error(String message) {
+            return new IOException("Malformed line near byte " + (offset + pos) + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+#Runs the mnist experiment with several worker processes synchronized by parameter averaging
+
+MNIST_PATH=/Users/mpennacchiotti/dev/deep-learning/neural-net/data/mnist
+NUM_WORKERS=4
+
+#Single-threaded native BLAS: the workers already use all the cores
+export OPENBLAS_NUM_THREADS=1
+
+java -Xmx1g -cp  ../../../target/neural-0.1-jar-with-dependencies.jar com.penna.neural.experiments.MnistDistributedExperiment $MNIST_PATH $NUM_WORKERS